@@ -0,0 +1,2808 @@
+/**
+ * Extended Entity Properties Tutorial Part 2: Scaling Up
+ */
+/*
+In the first part we gave every player mana and every living entity some gold, and it all works great... in a single
+player world with a handful of mobs. On a busy server, with hundreds of players and tens of thousands of mobs loaded,
+the little things start to add up: an object for every single mob, a packet every time a number changes, and so on.
+
+In this part we'll go through the properties from Part 1 one piece at a time and make them cheaper, without changing
+how you use them from the rest of your code.
+
+This part is written for Minecraft 1.7.10, so it uses @SubscribeEvent and my SimpleNetworkWrapper PacketDispatcher (see
+the update notes at the end of Part 1). Everything works just the same in 1.6.4 if you swap those back.
+
+Prerequisites:
+1. Part 1 of this tutorial, completed and working.
+2. Willingness to read carefully. Some of this is a bit more advanced than Part 1.
+*/
+/**
+ * Step 1: Only creating ExtendedLiving when it's needed
+ */
+/*
+Right now, every EntityLivingBase that is ever constructed gets its own ExtendedLiving, and onEntityJoinWorld rolls
+some gold for it. Every zombie, every squid, every chicken in every loaded chunk. How many of those do you think a
+player actually ever loots? Probably not very many, yet each one carries around an object and an entry in its
+extended properties map, and gets saved and loaded with the rest of its data.
+
+So let's turn it around: nothing is created until something actually CHANGES an entity's gold. Until then, we can
+work out how much gold an entity has whenever someone asks, as long as we always come up with the same answer. The
+trick is to use something that never changes for that entity: its UUID (which is saved with the entity) mixed with
+the world seed. The same zombie always has the same gold, even after the world is saved and loaded again, and we
+never had to store a thing.
+
+Once something does change the gold, we create the ExtendedLiving and register it, just like before. There's one
+catch, though: Entity only loads extended properties that were registered BEFORE it was read from NBT, which happens
+right after it is constructed. Since we no longer register ours in EntityConstructing, it would never load again!
+Instead, we save our data into Forge's own per-entity compound, getEntityData(), which Forge always saves and loads
+for us. When someone asks for an entity's properties and they don't exist yet, we check that compound to see whether
+there's anything saved.
+
+The check itself has to be careful. getEntityData() creates a new, empty compound if the entity doesn't have one yet,
+which would give every mob we check a new object, exactly what we're trying to avoid! So we peek at Forge's private
+field directly; it's a Forge field, not a vanilla one, so its name is the same in and out of the dev environment.
+*/
+public class ExtendedLiving implements IExtendedEntityProperties
+{
+	public final static String EXT_PROP_NAME = "ExtendedLiving";
+
+	/** Forge's private 'customEntityData' field, so we can look without creating it */
+	private static final Field customEntityData = ReflectionHelper.findField(Entity.class, "customEntityData");
+
+	private final EntityLivingBase entity;
+
+	private int gold;
+
+	private ExtendedLiving(EntityLivingBase entity, int gold)
+	{
+		this.entity = entity;
+		this.gold = gold;
+	}
+
+	/**
+	 * Returns ExtendedLiving properties for entity, or null if the entity's data was never changed; use this only
+	 * when you need to know that, and getGold or getForWrite otherwise
+	 */
+	public static final ExtendedLiving get(EntityLivingBase entity)
+	{
+		ExtendedLiving props = (ExtendedLiving) entity.getExtendedProperties(EXT_PROP_NAME);
+		if (props == null) {
+			NBTTagCompound saved = getSavedData(entity);
+			if (saved != null) {
+				// Changed in an earlier session; bring it back to life
+				props = new ExtendedLiving(entity, saved.getInteger("Gold"));
+				entity.registerExtendedProperties(EXT_PROP_NAME, props);
+			}
+		}
+		return props;
+	}
+
+	/**
+	 * Returns ExtendedLiving properties for entity, creating them if needed; call this only right before you change
+	 * something, or we're right back where we started
+	 */
+	public static final ExtendedLiving getForWrite(EntityLivingBase entity)
+	{
+		ExtendedLiving props = get(entity);
+		if (props == null) {
+			// Start from the same value the entity had while it was untouched
+			props = new ExtendedLiving(entity, getDefaultGold(entity));
+			entity.registerExtendedProperties(EXT_PROP_NAME, props);
+			// Make sure Forge's compound exists now, so it gets saved along with the entity (see saveNBTData)
+			entity.getEntityData();
+		}
+		return props;
+	}
+
+	/**
+	 * Returns the entity's gold, without creating anything for untouched entities
+	 */
+	public static final int getGold(EntityLivingBase entity)
+	{
+		ExtendedLiving props = get(entity);
+		return (props != null ? props.gold : getDefaultGold(entity));
+	}
+
+	/**
+	 * Returns the gold an entity has before anything changes it: between 0 and 15, just like before, but always the
+	 * same for the same entity in the same world. Server side only, since the client doesn't know the world seed.
+	 */
+	public static final int getDefaultGold(EntityLivingBase entity)
+	{
+		UUID uuid = entity.getUniqueID();
+		long hash = entity.worldObj.getSeed() ^ (uuid.getMostSignificantBits() * 0x9E3779B97F4A7C15L) ^ uuid.getLeastSignificantBits();
+		// Mix the bits well, so entities with similar UUIDs don't get similar gold
+		hash = (hash ^ (hash >>> 33)) * 0xFF51AFD7ED558CCDL;
+		hash = (hash ^ (hash >>> 33)) * 0xC4CEB9FE1A85EC53L;
+		hash ^= (hash >>> 33);
+		// The top 4 bits give us a number from 0 to 15
+		return (int) (hash >>> 60);
+	}
+
+	/**
+	 * Returns our tag from Forge's entity data, or null if there isn't one; never creates anything
+	 */
+	private static NBTTagCompound getSavedData(EntityLivingBase entity)
+	{
+		try {
+			NBTTagCompound data = (NBTTagCompound) customEntityData.get(entity);
+			return (data != null && data.hasKey(EXT_PROP_NAME) ? data.getCompoundTag(EXT_PROP_NAME) : null);
+		} catch (IllegalAccessException e) {
+			// findField already made it accessible, so this can't really happen
+			throw new RuntimeException(e);
+		}
+	}
+
+	public int getGold()
+	{
+		return this.gold;
+	}
+
+	public void addGold(int amount)
+	{
+		this.gold = Math.max(0, this.gold + amount);
+	}
+
+	/*
+	Note that we ignore the compound we're given and save into getEntityData() instead; see above for why. By the
+	time this is called, Entity has already put Forge's compound into the entity's tag, but since it's the very same
+	object, our changes still get written to disk.
+	*/
+	@Override
+	public void saveNBTData(NBTTagCompound compound)
+	{
+		NBTTagCompound properties = new NBTTagCompound();
+		properties.setInteger("Gold", this.gold);
+		this.entity.getEntityData().setTag(EXT_PROP_NAME, properties);
+	}
+
+	// Never called, since we're never registered before the entity is loaded; get() does the loading
+	@Override
+	public void loadNBTData(NBTTagCompound compound) {}
+
+	@Override
+	public void init(Entity entity, World world) {}
+}
+/*
+Now the event handler. ExtendedLiving is no longer registered in onEntityConstructing at all, so that goes back to only
+handling ExtendedPlayer:
+*/
+@SubscribeEvent
+public void onEntityConstructing(EntityConstructing event)
+{
+	if (event.entity instanceof EntityPlayer && ExtendedPlayer.get((EntityPlayer) event.entity) == null)
+		ExtendedPlayer.register((EntityPlayer) event.entity);
+}
+/*
+And the part of onEntityJoinWorld that rolled gold for every EntityLivingBase can simply be deleted: getDefaultGold
+already gives every entity its gold.
+
+Reading and writing gold then looks like this. Reading never creates anything:
+*/
+@SubscribeEvent
+public void onLivingDrops(LivingDropsEvent event)
+{
+	int gold = ExtendedLiving.getGold(event.entityLiving);
+	if (gold > 0) {
+		event.drops.add(new EntityItem(event.entityLiving.worldObj, event.entityLiving.posX, event.entityLiving.posY, event.entityLiving.posZ, new ItemStack(Items.gold_nugget, gold)));
+	}
+}
+// while changing it (for example, a player picking a mob's pocket) creates the properties the first time:
+ExtendedLiving.getForWrite(target).addGold(-stolen);
+/*
+How much did we save? Try this in a test world (from a command, for example), once with the old code from Part 1 and
+once with the new. It creates 10,000 zombies without spawning them, which is enough to post EntityConstructing for
+each one, and measures how much the heap grew:
+*/
+MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+List<Entity> mobs = new ArrayList<Entity>(10000);
+System.gc();
+long before = memory.getHeapMemoryUsage().getUsed();
+for (int i = 0; i < 10000; ++i) {
+	mobs.add(new EntityZombie(world));
+}
+System.gc();
+long after = memory.getHeapMemoryUsage().getUsed();
+System.out.println("[LIVING BASE] 10,000 zombies: " + (after - before) / 1024 + "KB");
+/*
+The difference between the two numbers is what the old ExtendedLiving cost for those 10,000 zombies: an object for each
+one, plus the entry in its extended properties map. Expect somewhere around half a megabyte; on a server with a lot of
+chunks loaded, that's memory and garbage collection time you get back for free.
+
+One thing to remember: the default gold only depends on the UUID and the seed, so if your mod gives entities gold in
+some other way (by mob type, for example), put that in getDefaultGold too, and keep it just as predictable.
+*/
+/**
+ * Step 2: Storing properties in columns
+ */
+/*
+Look at what an ExtendedPlayer actually is in memory: an object header, a reference back to the player, and two ints.
+The ints are the only part we care about, and they're scattered all over the heap, one little object per player. If
+you want to do something to every player at once, like regenerating everyone's mana, you have to go find each player,
+then their properties, then finally the numbers.
+
+Databases solved this problem a long time ago by storing data in 'columns': instead of one object per row holding all
+of that row's values, you keep one array per value, holding that value for every row. All the current mana in one
+int[], all the max mana in another, and each player simply gets a 'slot' number saying which index is theirs. Looping
+through an int[] is about the fastest thing a computer can do.
+
+Our properties classes don't go anywhere, though. They keep the same get() method and the same methods for using
+them, but instead of holding the values, they just remember their slot: a 'flyweight' view onto the columns. None of
+the code that USES the properties needs to change at all.
+
+We need one set of columns per World (the client and each dimension on the server all have their own), and slots have
+to be given back when an entity dies or is unloaded, so they can be used again by the next entity. Let's start with
+the columns themselves:
+*/
+public final class PropertyStore
+{
+	/**
+	 * Stores by world and properties name. Entries are removed when their world unloads; the keys are weak as well, but
+	 * that alone isn't enough, since every store holds entities that hold on to their world.
+	 */
+	private static final Map<World, Map<String, PropertyStore>> stores = new WeakHashMap<World, Map<String, PropertyStore>>();
+
+	/** One array per column, each indexed by slot */
+	private int[][] columns;
+
+	/** The entity using each slot, or null if it's free */
+	private Entity[] owners;
+
+	/** Free slots below 'size', used again before any new ones */
+	private int[] free = new int[16];
+	private int numFree;
+
+	/** One more than the highest slot ever used */
+	private int size;
+
+	private PropertyStore(int numColumns)
+	{
+		this.columns = new int[numColumns][64];
+		this.owners = new Entity[64];
+	}
+
+	/**
+	 * Returns the store for the named properties in the world, creating it the first time
+	 */
+	public static PropertyStore get(World world, String name, int numColumns)
+	{
+		Map<String, PropertyStore> byName = stores.get(world);
+		if (byName == null) {
+			stores.put(world, byName = new HashMap<String, PropertyStore>());
+		}
+		PropertyStore store = byName.get(name);
+		if (store == null) {
+			byName.put(name, store = new PropertyStore(numColumns));
+		}
+		return store;
+	}
+
+	/**
+	 * Returns the store for the named properties in the world, or null if nothing has used it yet. Use this when you only
+	 * want to read the store, like once per tick for every world, so worlds without any such entities don't get one.
+	 */
+	public static PropertyStore getIfPresent(World world, String name)
+	{
+		Map<String, PropertyStore> byName = stores.get(world);
+		return (byName == null ? null : byName.get(name));
+	}
+
+	/**
+	 * Starts tracking the entities joining and leaving the world; see ColumnView. Call from WorldEvent.Load, which comes
+	 * before any entities are added, on both sides.
+	 */
+	public static void onWorldLoad(World world)
+	{
+		world.addWorldAccess(new ColumnView.Tracker());
+	}
+
+	/**
+	 * Forgets all the world's stores; call from WorldEvent.Unload
+	 */
+	public static void onWorldUnload(World world)
+	{
+		stores.remove(world);
+	}
+
+	/**
+	 * Gives the entity a slot, using a free one if there is one
+	 */
+	int allocate(Entity owner)
+	{
+		int slot;
+		if (numFree > 0) {
+			slot = free[--numFree];
+		} else {
+			if (size == owners.length) {
+				owners = Arrays.copyOf(owners, size * 2);
+				for (int c = 0; c < columns.length; ++c) {
+					columns[c] = Arrays.copyOf(columns[c], size * 2);
+				}
+			}
+			slot = size++;
+		}
+		owners[slot] = owner;
+		return slot;
+	}
+
+	/**
+	 * Frees the slot; its values are set back to 0, so bulk loops can safely treat free slots like any other
+	 */
+	void release(int slot)
+	{
+		owners[slot] = null;
+		for (int[] column : columns) {
+			column[slot] = 0;
+		}
+		if (numFree == free.length) {
+			free = Arrays.copyOf(free, numFree * 2);
+		}
+		free[numFree++] = slot;
+	}
+
+	/** Returns the whole column, for looping over every slot at once; only indices below size() are used */
+	public int[] getColumn(int column) { return columns[column]; }
+
+	/** Returns the entity using the slot, or null if it's free */
+	public Entity getOwner(int slot) { return owners[slot]; }
+
+	/** Returns one more than the highest slot in use; loop from 0 to this */
+	public int size() { return size; }
+}
+/*
+Next, a base class for the views. An entity is constructed a little while before it joins a World, and when a player
+changes dimension, it leaves one World and joins another, so a view isn't always attached to a slot. While it's
+detached, it keeps its values in a small array of its own; while it's attached, that array is thrown away and the
+values live only in the columns.
+
+To find out when entities join and leave a World, we use IWorldAccess. That's the interface the client's RenderGlobal
+uses to hear about everything happening in the World, and onEntityCreate and onEntityDestroy are called whenever an
+entity is added to or removed from it for ANY reason: spawning, dying, chunks loading and unloading, or changing
+dimension.
+*/
+public abstract class ColumnView implements IExtendedEntityProperties
+{
+	/** Names of all the properties that use columns, so Tracker knows what to look for */
+	private static final List<String> names = new ArrayList<String>();
+
+	private final Entity entity;
+	private final String name;
+
+	private final int numColumns;
+
+	/** The store and slot this view is attached to, or null and -1 while detached */
+	private PropertyStore store;
+	private int slot = -1;
+
+	/** Values while detached; null while attached */
+	private int[] detached;
+
+	protected ColumnView(Entity entity, String name, int numColumns)
+	{
+		this.entity = entity;
+		this.name = name;
+		this.numColumns = numColumns;
+		this.detached = new int[numColumns];
+	}
+
+	/** Call once for each properties class that extends ColumnView, for example in a static initializer */
+	protected static void registerName(String name)
+	{
+		names.add(name);
+	}
+
+	protected final int read(int column)
+	{
+		return (store != null ? store.getColumn(column)[slot] : detached[column]);
+	}
+
+	protected final void write(int column, int value)
+	{
+		if (store != null) {
+			store.getColumn(column)[slot] = value;
+		} else {
+			detached[column] = value;
+		}
+	}
+
+	/** Moves the values from our own array into a slot in the entity's World */
+	final void attach()
+	{
+		if (store != null) {
+			return;
+		}
+		store = PropertyStore.get(entity.worldObj, name, detached.length);
+		slot = store.allocate(entity);
+		for (int c = 0; c < detached.length; ++c) {
+			store.getColumn(c)[slot] = detached[c];
+		}
+		detached = null;
+	}
+
+	/** Moves the values out of the slot and into our own array, and frees the slot */
+	final void detach()
+	{
+		if (store == null) {
+			return;
+		}
+		detached = new int[numColumns];
+		for (int c = 0; c < detached.length; ++c) {
+			detached[c] = store.getColumn(c)[slot];
+		}
+		store.release(slot);
+		store = null;
+		slot = -1;
+	}
+
+	/**
+	 * Attaches and detaches views as their entities join and leave each World
+	 */
+	static final class Tracker implements IWorldAccess
+	{
+		@Override
+		public void onEntityCreate(Entity entity) {
+			for (String name : names) {
+				IExtendedEntityProperties props = entity.getExtendedProperties(name);
+				if (props instanceof ColumnView) {
+					((ColumnView) props).attach();
+				}
+			}
+		}
+
+		@Override
+		public void onEntityDestroy(Entity entity) {
+			for (String name : names) {
+				IExtendedEntityProperties props = entity.getExtendedProperties(name);
+				if (props instanceof ColumnView) {
+					((ColumnView) props).detach();
+				}
+			}
+		}
+
+		// We don't care about anything else
+		@Override public void markBlockForUpdate(int x, int y, int z) {}
+		@Override public void markBlockForRenderUpdate(int x, int y, int z) {}
+		@Override public void markBlockRangeForRenderUpdate(int x1, int y1, int z1, int x2, int y2, int z2) {}
+		@Override public void playSound(String sound, double x, double y, double z, float volume, float pitch) {}
+		@Override public void playSoundToNearExcept(EntityPlayer player, String sound, double x, double y, double z, float volume, float pitch) {}
+		@Override public void spawnParticle(String particle, double x, double y, double z, double motionX, double motionY, double motionZ) {}
+		@Override public void playRecord(String record, int x, int y, int z) {}
+		@Override public void broadcastSound(int soundID, int x, int y, int z, int data) {}
+		@Override public void playAuxSFX(EntityPlayer player, int soundID, int x, int y, int z, int data) {}
+		@Override public void destroyBlockPartially(int entityID, int x, int y, int z, int progress) {}
+		@Override public void onStaticEntitiesChanged() {}
+	}
+}
+/*
+The Tracker has to be in place before the first entity joins a World, or that entity never gets attached. So add it
+as soon as each World loads, and forget the World's stores when it unloads, in your event handler (on the
+MinecraftForge.EVENT_BUS). Both happen on the client as well as the server, which is exactly what we want:
+*/
+@SubscribeEvent
+public void onWorldLoad(WorldEvent.Load event)
+{
+	PropertyStore.onWorldLoad(event.world);
+}
+
+@SubscribeEvent
+public void onWorldUnload(WorldEvent.Unload event)
+{
+	PropertyStore.onWorldUnload(event.world);
+}
+/*
+Forgetting the stores on unload matters more than it looks. The stores map has weak keys, but each store holds the
+World's entities, and every entity holds its World, so without this, a single player world would never be garbage
+collected after you quit to the title screen.
+
+Now ExtendedPlayer becomes a view. Compare it to Part 1: the methods are all the same, but instead of fields, each
+value is a column number, and we read() and write() them. Each store is created the first time a view is attached
+in its World, so apart from the two events above, there's no extra setup.
+*/
+public class ExtendedPlayer extends ColumnView
+{
+	public final static String EXT_PROP_NAME = "ExtendedPlayer";
+
+	/** Our columns */
+	public static final int CURRENT_MANA = 0, MAX_MANA = 1;
+
+	static {
+		registerName(EXT_PROP_NAME);
+	}
+
+	private final EntityPlayer player;
+
+	public ExtendedPlayer(EntityPlayer player)
+	{
+		super(player, EXT_PROP_NAME, 2);
+		this.player = player;
+		this.write(MAX_MANA, 50);
+		this.write(CURRENT_MANA, 50);
+	}
+
+	public static final void register(EntityPlayer player)
+	{
+		player.registerExtendedProperties(EXT_PROP_NAME, new ExtendedPlayer(player));
+	}
+
+	public static final ExtendedPlayer get(EntityPlayer player)
+	{
+		return (ExtendedPlayer) player.getExtendedProperties(EXT_PROP_NAME);
+	}
+
+	@Override
+	public void saveNBTData(NBTTagCompound compound)
+	{
+		NBTTagCompound properties = new NBTTagCompound();
+		properties.setInteger("CurrentMana", this.getCurrentMana());
+		properties.setInteger("MaxMana", this.getMaxMana());
+		compound.setTag(EXT_PROP_NAME, properties);
+	}
+
+	@Override
+	public void loadNBTData(NBTTagCompound compound)
+	{
+		NBTTagCompound properties = compound.getCompoundTag(EXT_PROP_NAME);
+		this.write(MAX_MANA, properties.getInteger("MaxMana"));
+		this.write(CURRENT_MANA, properties.getInteger("CurrentMana"));
+	}
+
+	@Override
+	public void init(Entity entity, World world) {}
+
+	public final int getCurrentMana()
+	{
+		return this.read(CURRENT_MANA);
+	}
+
+	public final int getMaxMana()
+	{
+		return this.read(MAX_MANA);
+	}
+
+	public final boolean consumeMana(int amount)
+	{
+		int mana = this.read(CURRENT_MANA);
+		boolean sufficient = amount <= mana;
+		this.write(CURRENT_MANA, mana - (amount < mana ? amount : mana));
+		this.sync();
+		return sufficient;
+	}
+
+	public final void replenishMana()
+	{
+		this.write(CURRENT_MANA, this.read(MAX_MANA));
+		this.sync();
+	}
+
+	public final void setCurrentMana(int amount)
+	{
+		int max = this.read(MAX_MANA);
+		this.write(CURRENT_MANA, (amount < max ? amount : max));
+		this.sync();
+	}
+
+	public final void setMaxMana(int amount)
+	{
+		this.write(MAX_MANA, (amount > 0 ? amount : 0));
+		this.sync();
+	}
+
+	public final void copy(ExtendedPlayer props)
+	{
+		this.write(MAX_MANA, props.getMaxMana());
+		this.write(CURRENT_MANA, props.getCurrentMana());
+	}
+
+	public final void sync()
+	{
+		if (this.player instanceof EntityPlayerMP) {
+			PacketDispatcher.sendTo(new SyncPlayerPropsMessage(this.player), (EntityPlayerMP) this.player);
+		}
+	}
+}
+/*
+ExtendedLiving gets the same treatment, with a single GOLD column. Only the constructor and the places that used the
+'gold' field change; getGold, getForWrite and the rest from Step 1 stay exactly the same:
+*/
+public class ExtendedLiving extends ColumnView
+{
+	public final static String EXT_PROP_NAME = "ExtendedLiving";
+
+	public static final int GOLD = 0;
+
+	static {
+		registerName(EXT_PROP_NAME);
+	}
+
+	private ExtendedLiving(EntityLivingBase entity, int gold)
+	{
+		super(entity, EXT_PROP_NAME, 1);
+		this.entity = entity;
+		this.write(GOLD, gold);
+		// Unlike players, these are created while the entity is already in the World
+		if (entity.worldObj.loadedEntityList.contains(entity)) {
+			this.attach();
+		}
+	}
+
+	public int getGold()
+	{
+		return this.read(GOLD);
+	}
+
+	public void addGold(int amount)
+	{
+		this.write(GOLD, Math.max(0, this.read(GOLD) + amount));
+	}
+
+	// ... and saveNBTData uses getGold() instead of the field
+}
+/*
+Checking loadedEntityList with contains() is slow for a big list, but it only happens the first time an entity's gold
+changes. If you'd rather not, use '!entity.isDead && entity.addedToChunk' instead, which is nearly always the same.
+
+Now for the payoff. Regenerating mana for every player in a World is a single loop over two int arrays, with no
+looking anything up at all. Free slots have a max mana of 0, so they're left alone without even needing a check. Add
+this to ExtendedPlayer:
+*/
+/**
+ * Regenerates the given amount of mana for every player in the world; returns the number of players that changed
+ */
+public static int regenerateAll(World world, int amount)
+{
+	PropertyStore store = PropertyStore.get(world, EXT_PROP_NAME, 2);
+	int[] current = store.getColumn(CURRENT_MANA);
+	int[] max = store.getColumn(MAX_MANA);
+	int changed = 0;
+	for (int slot = 0; slot < store.size(); ++slot) {
+		if (current[slot] < max[slot]) {
+			current[slot] = Math.min(max[slot], current[slot] + amount);
+			ExtendedPlayer.get((EntityPlayer) store.getOwner(slot)).sync();
+			++changed;
+		}
+	}
+	return changed;
+}
+/*
+Call it from a WorldTickEvent every second or so, for example, instead of ticking each player's mana one at a time.
+
+A couple of things to keep in mind:
+
+1. Views are only attached on the thread the World belongs to, and the arrays aren't safe to touch from any other
+   thread. That's no different from the rest of the World.
+2. A property store never shrinks. That's fine for players and even for mobs, since the free slots get used again,
+   but don't use this for something that comes and goes by the millions.
+3. If something goes wrong, you can always switch back to the classes from Part 1: nothing outside of the properties
+   classes knows the difference.
+*/
+/**
+ * Step 3: Sending only what changed, once per tick
+ */
+/*
+Every method in ExtendedPlayer that changes mana calls sync(), and sync() sends a packet with ALL of the player's
+data right away. A spell that sets both current and max mana sends two packets. An item that drains a little mana every
+tick sends one every tick, forever. Multiply that by a server full of players, and it's a lot of packets, most of them
+saying something the client was just about to be told again.
+
+The fix is easy: instead of sending, sync() just makes a note of WHAT changed, and once at the end of each server tick
+we send one packet per player with only the values that changed. Calling sync() ten times in a tick now costs ten
+bitwise ORs and still sends a single packet.
+
+The notes are 'dirty bits': one bit per value, set when the value changes and cleared once it's sent. And since our
+values live in columns now, the dirty bits get a column of their own. At the end of the tick we just loop through that
+one column looking for anything that isn't 0.
+
+First, the new column and bits in ExtendedPlayer. The view now has 3 columns, so change 'super(player, EXT_PROP_NAME, 2)'
+to 3, and the 2 in regenerateAll as well:
+*/
+/** Our columns; DIRTY holds a bit for each of the others that changed since the last sync */
+public static final int CURRENT_MANA = 0, MAX_MANA = 1, DIRTY = 2;
+
+/** Dirty bits, one for each value we send */
+public static final int DIRTY_CURRENT_MANA = 1 << CURRENT_MANA, DIRTY_MAX_MANA = 1 << MAX_MANA, DIRTY_ALL = DIRTY_CURRENT_MANA | DIRTY_MAX_MANA;
+/*
+Then sync() becomes markDirty(), which only ORs the bits in. We only ever send from the server, so there's no need to
+mark anything on the client:
+*/
+/**
+ * Marks the values as changed; they'll be sent to the client at the end of the tick. Cheap enough to call as often as
+ * you like.
+ */
+public final void markDirty(int bits)
+{
+	if (!this.player.worldObj.isRemote) {
+		this.write(DIRTY, this.read(DIRTY) | bits);
+	}
+}
+
+/**
+ * Sends everything at the end of the tick, for example when the player first joins
+ */
+public final void sync()
+{
+	this.markDirty(DIRTY_ALL);
+}
+/*
+and the methods that change mana each mark only the value they changed:
+*/
+public final boolean consumeMana(int amount)
+{
+	int mana = this.read(CURRENT_MANA);
+	boolean sufficient = amount <= mana;
+	this.write(CURRENT_MANA, mana - (amount < mana ? amount : mana));
+	this.markDirty(DIRTY_CURRENT_MANA);
+	return sufficient;
+}
+
+public final void replenishMana()
+{
+	this.write(CURRENT_MANA, this.read(MAX_MANA));
+	this.markDirty(DIRTY_CURRENT_MANA);
+}
+
+public final void setCurrentMana(int amount)
+{
+	int max = this.read(MAX_MANA);
+	this.write(CURRENT_MANA, (amount < max ? amount : max));
+	this.markDirty(DIRTY_CURRENT_MANA);
+}
+
+public final void setMaxMana(int amount)
+{
+	this.write(MAX_MANA, (amount > 0 ? amount : 0));
+	// Current mana might be more than the new max now, and it's only a few bytes, so send both
+	this.markDirty(DIRTY_ALL);
+}
+/*
+In regenerateAll, replace the call to sync() with a direct write to the dirty column, since we're already looping
+through the columns anyway:
+*/
+int[] dirty = store.getColumn(DIRTY);
+// ... and inside the loop:
+dirty[slot] |= DIRTY_CURRENT_MANA;
+/*
+The packet starts with a byte holding the dirty bits, followed by only the values whose bit is set, in column order.
+The client reads the bits first, so it knows exactly which values follow:
+*/
+public class SyncManaMessage implements IMessage
+{
+	private int bits, currentMana, maxMana;
+
+	// The basic, no-argument constructor MUST be included for SimpleNetworkWrapper
+	public SyncManaMessage() {}
+
+	public SyncManaMessage(int bits, int currentMana, int maxMana) {
+		this.bits = bits;
+		this.currentMana = currentMana;
+		this.maxMana = maxMana;
+	}
+
+	@Override
+	public void toBytes(ByteBuf buffer) {
+		buffer.writeByte(bits);
+		if ((bits & ExtendedPlayer.DIRTY_CURRENT_MANA) != 0) {
+			buffer.writeInt(currentMana);
+		}
+		if ((bits & ExtendedPlayer.DIRTY_MAX_MANA) != 0) {
+			buffer.writeInt(maxMana);
+		}
+	}
+
+	@Override
+	public void fromBytes(ByteBuf buffer) {
+		bits = buffer.readByte();
+		if ((bits & ExtendedPlayer.DIRTY_CURRENT_MANA) != 0) {
+			currentMana = buffer.readInt();
+		}
+		if ((bits & ExtendedPlayer.DIRTY_MAX_MANA) != 0) {
+			maxMana = buffer.readInt();
+		}
+	}
+
+	public static class Handler implements IMessageHandler<SyncManaMessage, IMessage> {
+		@Override
+		public IMessage onMessage(SyncManaMessage message, MessageContext ctx) {
+			ExtendedPlayer props = ExtendedPlayer.get(Minecraft.getMinecraft().thePlayer);
+			// Max first, so current mana isn't capped by the old max
+			if ((message.bits & ExtendedPlayer.DIRTY_MAX_MANA) != 0) {
+				props.setMaxMana(message.maxMana);
+			}
+			if ((message.bits & ExtendedPlayer.DIRTY_CURRENT_MANA) != 0) {
+				props.setCurrentMana(message.currentMana);
+			}
+			return null;
+		}
+	}
+}
+/*
+Register it for the client side with the rest of your messages, just like SyncPlayerPropsMessage.
+
+Finally, the flush. Add this to ExtendedPlayer; it goes through each World's dirty column, sends a packet for each
+player with anything marked, and clears the bits:
+*/
+/** Number of sync packets sent since the server started; see below */
+public static long packetsSent;
+
+/**
+ * Sends one packet to each player whose values changed this tick; call once per tick, at the end
+ */
+public static void flushAll()
+{
+	for (WorldServer world : MinecraftServer.getServer().worldServers) {
+		PropertyStore store = PropertyStore.getIfPresent(world, EXT_PROP_NAME);
+		if (store == null) {
+			continue;
+		}
+		int[] dirty = store.getColumn(DIRTY);
+		int[] current = store.getColumn(CURRENT_MANA);
+		int[] max = store.getColumn(MAX_MANA);
+		for (int slot = 0; slot < store.size(); ++slot) {
+			if (dirty[slot] != 0) {
+				PacketDispatcher.sendTo(new SyncManaMessage(dirty[slot], current[slot], max[slot]), (EntityPlayerMP) store.getOwner(slot));
+				dirty[slot] = 0;
+				++packetsSent;
+			}
+		}
+	}
+}
+/*
+and call it from a ServerTickEvent handler, registered on the FML event bus like any other tick handler:
+*/
+@SubscribeEvent
+public void onServerTick(ServerTickEvent event)
+{
+	if (event.phase == Phase.END) {
+		ExtendedPlayer.flushAll();
+	}
+}
+/*
+Two things to check in the rest of your code:
+
+1. Only EntityPlayerMP ever has anything marked dirty, since markDirty does nothing on the client, so the cast in
+   flushAll is safe.
+2. Where you used to send SyncPlayerPropsMessage in onEntityJoinWorld, just call sync(); the data goes out at the end of
+   the tick, by which time the client has definitely finished setting up the player.
+
+How many packets does this save? Count them. For the 'before' numbers, add '++packetsSent' to the old sync() from
+Part 1, right where it sends the packet. Then print the rate every second from the same tick handler:
+*/
+private int ticks;
+private long lastSent;
+
+// in onServerTick, after flushAll:
+if (++ticks % 20 == 0) {
+	int players = MinecraftServer.getServer().getCurrentPlayerCount();
+	if (players > 0) {
+		System.out.println("[PACKETS] Mana sync packets per player per second: " + (ExtendedPlayer.packetsSent - lastSent) / (double) players);
+	}
+	lastSent = ExtendedPlayer.packetsSent;
+}
+/*
+Now hold right click with an item that drains mana every tick, and cast a spell that changes both current and max mana
+now and then. Before, that's 20 packets a second from the item alone, plus two more for every spell, each 8 bytes of
+data. After, it's never more than 20 a second no matter what you do in a tick, and most of them are 5 bytes, since
+max mana hardly ever changes.
+*/
+/**
+ * Step 4: Regenerating mana without ticking
+ */
+/*
+Mana that refills over time is usually done with a timer: every tick, count down manaRegenTimer, and when it hits 0,
+add a point of mana and start over. That's what the manaRegenTimer in Part 1's copy() method is for. It works, but it
+means doing something for every online player on every single tick, whether their mana is full or not, and (with
+Step 3) marking them dirty every time a point comes back.
+
+But think about what the timer actually computes: mana goes up by one point every so many ticks, until it's full.
+That's just arithmetic! If we know how much mana the player had at some point in time, and what time it is now, we can
+work out how much they have now whenever someone asks:
+
+    current = min(max, manaAtTime + (now - lastUpdate) / ticksPerPoint)
+
+So instead of current mana, we store the mana at a certain time, and that time. Nothing happens on each tick at all.
+We only write new values when something CHANGES the curve: spending mana, or changing max mana. And because the
+client can do the same arithmetic, the mana bar fills up smoothly on its own, without a single packet.
+
+For 'now' we use getTotalWorldTime(), which only ever goes up (unlike the time of day, which players can change with
+/time set) and is the same in every dimension. It's a long, but all we ever need is the difference between two times,
+and that works perfectly well with just the lower 32 bits as an int, even when they wrap around. That way it fits in
+our int columns.
+
+Change the columns in ExtendedPlayer to these; the view now has 4 columns:
+*/
+/** Our columns: mana at the time in LAST_UPDATE, max mana, dirty bits, and the time MANA_AT_TIME was set */
+public static final int MANA_AT_TIME = 0, MAX_MANA = 1, DIRTY = 2, LAST_UPDATE = 3;
+
+/** Dirty bits; DIRTY_CURRENT_MANA now means both MANA_AT_TIME and LAST_UPDATE changed */
+public static final int DIRTY_CURRENT_MANA = 1 << MANA_AT_TIME, DIRTY_MAX_MANA = 1 << MAX_MANA, DIRTY_ALL = DIRTY_CURRENT_MANA | DIRTY_MAX_MANA;
+
+/** Number of ticks it takes to regenerate one point of mana */
+public static int ticksPerPoint = 20;
+
+/** Set to false to stop mana from regenerating at all, for example while testing; server side only */
+public static boolean regenEnabled = true;
+/*
+Delete the manaRegenTimer field, whatever ticked it, and regenerateAll from Step 2; we don't need any of them anymore.
+
+getCurrentMana does the arithmetic. Watch out for how long it's been: if a player has been sitting around for a week,
+(now - lastUpdate) / ticksPerPoint added to manaAtTime could be more than an int can hold, so check whether they're
+already full first. The time it takes to fill up can be more than an int can hold, too, with a big max mana or a slow
+regeneration rate, so work that out as a long:
+*/
+public final int getCurrentMana()
+{
+	int max = this.read(MAX_MANA);
+	int mana = this.read(MANA_AT_TIME);
+	if (!regenEnabled) {
+		return Math.min(mana, max);
+	}
+	int elapsed = this.getTime() - this.read(LAST_UPDATE);
+	if (mana >= max || elapsed >= (long) (max - mana) * ticksPerPoint) {
+		return max;
+	}
+	return mana + Math.max(elapsed, 0) / ticksPerPoint;
+}
+
+/** Returns the current time in ticks, cut down to an int; only ever compare it by subtracting */
+private int getTime()
+{
+	return (int) this.player.worldObj.getTotalWorldTime();
+}
+
+/**
+ * Starts a new curve at the given mana, now. If the player isn't full, whatever progress they made toward their next
+ * point is kept, so spending mana doesn't reset the timer.
+ */
+private void setManaNow(int mana)
+{
+	int now = this.getTime();
+	int max = this.read(MAX_MANA);
+	int progress = 0;
+	if (mana < max && this.read(MANA_AT_TIME) < max) {
+		progress = Math.max(now - this.read(LAST_UPDATE), 0) % ticksPerPoint;
+	}
+	this.write(MANA_AT_TIME, Math.max(0, Math.min(mana, max)));
+	this.write(LAST_UPDATE, now - progress);
+	this.markDirty(DIRTY_CURRENT_MANA);
+}
+/*
+The methods that change mana now all go through setManaNow:
+*/
+public final boolean consumeMana(int amount)
+{
+	int mana = this.getCurrentMana();
+	boolean sufficient = amount <= mana;
+	this.setManaNow(mana - (amount < mana ? amount : mana));
+	return sufficient;
+}
+
+public final void replenishMana()
+{
+	this.setManaNow(this.read(MAX_MANA));
+}
+
+public final void setCurrentMana(int amount)
+{
+	this.setManaNow(amount);
+}
+
+public final void setMaxMana(int amount)
+{
+	// Work out the current mana with the OLD max before changing it
+	int mana = this.getCurrentMana();
+	this.write(MAX_MANA, (amount > 0 ? amount : 0));
+	this.setManaNow(mana);
+	this.markDirty(DIRTY_ALL);
+}
+/*
+copy() copies the curve as it is. All dimensions share the same world time, so it carries over perfectly, even to a
+player respawning in a different dimension:
+*/
+public final void copy(ExtendedPlayer props)
+{
+	this.write(MAX_MANA, props.read(MAX_MANA));
+	this.write(MANA_AT_TIME, props.read(MANA_AT_TIME));
+	this.write(LAST_UPDATE, props.read(LAST_UPDATE));
+}
+/*
+For saving, nothing changes at all: we save getCurrentMana() as "CurrentMana" like always. When loading, we start a
+new curve from the saved mana at the current time, so mana doesn't regenerate while a player is logged out. If you'd
+rather it did, save the time as well.
+*/
+@Override
+public void loadNBTData(NBTTagCompound compound)
+{
+	NBTTagCompound properties = compound.getCompoundTag(EXT_PROP_NAME);
+	this.write(MAX_MANA, properties.getInteger("MaxMana"));
+	this.write(MANA_AT_TIME, properties.getInteger("CurrentMana"));
+	this.write(LAST_UPDATE, this.getTime());
+}
+/*
+Last of all, SyncManaMessage sends the curve instead of the current mana, so the client can work it out for itself.
+Replace 'currentMana' in the message with two fields, 'manaAtTime' and 'lastUpdate', and write and read both of them
+when DIRTY_CURRENT_MANA is set. In flushAll, pass in the MANA_AT_TIME and LAST_UPDATE columns, and in the handler:
+*/
+if ((message.bits & ExtendedPlayer.DIRTY_CURRENT_MANA) != 0) {
+	props.setCurve(message.manaAtTime, message.lastUpdate);
+}
+
+// which is a new method in ExtendedPlayer, for the client only:
+/**
+ * Sets the mana curve exactly as the server sent it
+ */
+@SideOnly(Side.CLIENT)
+public final void setCurve(int manaAtTime, int lastUpdate)
+{
+	this.write(MANA_AT_TIME, manaAtTime);
+	this.write(LAST_UPDATE, lastUpdate);
+}
+/*
+The client's world time is kept in step with the server's by vanilla's time packets, so the client's getCurrentMana
+gives the same answer the server's does, give or take a tick. GuiManaBar already calls getCurrentMana every frame, so
+the bar now fills up by itself between packets.
+
+How much does regeneration cost each tick now? Nothing at all. The only packets left are for when mana is actually
+spent or max mana changes.
+*/
+/**
+ * Step 5: Many values in one DataWatcher slot
+ */
+/*
+In Part 1 we put current mana in DataWatcher slot 20, with a warning that there are only 32 slots to go around, and
+vanilla and other mods use plenty of them. Every new value you want synced either takes another slot or goes back to
+custom packets.
+
+But how many bits does a value actually need? Stamina from 0 to 100 fits in 7 bits. A flag like 'is casting a spell'
+is 1 bit. A number of spell charges from 0 to 7 is 3 bits. An int slot has 32 bits, which is room for all of them and
+then some. So let's pack several small values into a single int slot, each in its own range of bits, and give each
+one a 'field' object that knows where its bits are.
+
+Changing a field only changes its own bits. If the new value is the same as the old one, the int doesn't change, and
+we don't touch the DataWatcher at all, so nothing gets sent. If it did change, DataWatcher sends the whole int, which
+is just 5 bytes however many values are in it.
+
+Mana itself doesn't need the DataWatcher anymore since Step 4 (the client works it out from the curve), so slot 20 is
+free for this.
+*/
+public final class PackedWatcher
+{
+	/** The DataWatcher index used for all of the fields */
+	private final int index;
+
+	/** Number of bits given out to fields so far */
+	private int usedBits;
+
+	public PackedWatcher(int index)
+	{
+		this.index = index;
+	}
+
+	/**
+	 * Adds a field holding values from 0 to (2^bits - 1); declare all fields before registering
+	 */
+	public IntField addInt(int bits)
+	{
+		if (bits < 1 || usedBits + bits > 32) {
+			throw new IllegalArgumentException("Not enough room for " + bits + " more bits in DataWatcher slot " + index);
+		}
+		IntField field = new IntField(usedBits, bits);
+		usedBits += bits;
+		return field;
+	}
+
+	/**
+	 * Adds a true/false field, which takes a single bit
+	 */
+	public BooleanField addBoolean()
+	{
+		return new BooleanField(addInt(1));
+	}
+
+	/**
+	 * Adds the slot to the entity's DataWatcher, with every field 0 (or false); call from the entity's constructor,
+	 * or from your properties' constructor like we did in Part 1
+	 */
+	public void register(Entity entity)
+	{
+		entity.getDataWatcher().addObject(index, Integer.valueOf(0));
+	}
+
+	public final class IntField
+	{
+		private final int shift, mask, max;
+
+		private IntField(int shift, int bits)
+		{
+			this.shift = shift;
+			// 32 bits would overflow (1 << 32), so that case gets all of them
+			this.max = (bits == 32 ? -1 : (1 << bits) - 1);
+			this.mask = this.max << shift;
+		}
+
+		public int get(Entity entity)
+		{
+			return (entity.getDataWatcher().getWatchableObjectInt(index) & mask) >>> shift;
+		}
+
+		/**
+		 * Sets the field, clamped to the values it can hold; the DataWatcher is only updated if the value changed.
+		 * Server side only, just like any other DataWatcher update.
+		 */
+		public void set(Entity entity, int value)
+		{
+			if (max != -1) {
+				value = Math.max(0, Math.min(value, max));
+			}
+			DataWatcher watcher = entity.getDataWatcher();
+			int packed = watcher.getWatchableObjectInt(index);
+			int updated = (packed & ~mask) | ((value << shift) & mask);
+			if (updated != packed) {
+				watcher.updateObject(index, Integer.valueOf(updated));
+			}
+		}
+	}
+
+	public final class BooleanField
+	{
+		private final IntField bit;
+
+		private BooleanField(IntField bit)
+		{
+			this.bit = bit;
+		}
+
+		public boolean get(Entity entity)
+		{
+			return bit.get(entity) != 0;
+		}
+
+		public void set(Entity entity, boolean value)
+		{
+			bit.set(entity, value ? 1 : 0);
+		}
+	}
+}
+/*
+Declare the watcher and its fields as constants in ExtendedPlayer. The fields get their bits in the order they're
+declared, and the server and client both run the same code, so they always agree on which bits are which:
+*/
+/** Index of our packed DataWatcher slot; change it here if it conflicts with something */
+public static final int PACKED_WATCHER = 20;
+
+public static final PackedWatcher WATCHER = new PackedWatcher(PACKED_WATCHER);
+public static final PackedWatcher.IntField STAMINA = WATCHER.addInt(7);        // 0 to 127
+public static final PackedWatcher.IntField SPELL_CHARGES = WATCHER.addInt(3);  // 0 to 7
+public static final PackedWatcher.BooleanField CASTING = WATCHER.addBoolean();
+public static final PackedWatcher.BooleanField SHIELDED = WATCHER.addBoolean();
+// 12 bits used, 20 more to spare
+/*
+Register the slot in the constructor, in place of Part 1's 'addObject(MANA_WATCHER, ...)':
+*/
+WATCHER.register(player);
+/*
+and give each field a typed getter and setter, so the rest of your code never sees the bits:
+*/
+public final int getStamina()
+{
+	return STAMINA.get(this.player);
+}
+
+public final void setStamina(int amount)
+{
+	STAMINA.set(this.player, amount);
+}
+
+public final boolean isCasting()
+{
+	return CASTING.get(this.player);
+}
+
+public final void setCasting(boolean casting)
+{
+	CASTING.set(this.player, casting);
+}
+// ... and so on for SPELL_CHARGES and SHIELDED
+/*
+Don't forget to save them to NBT like any other value; the DataWatcher only syncs them, it doesn't save anything.
+
+That's four values in one slot, and there's room for more. A few things to keep in mind:
+
+1. Only put values in here that actually fit. set() clamps anything out of range, so a stamina of 200 in a 7 bit
+   field quietly becomes 127. If a value might grow later, give it a bit or two extra now; changing the layout later
+   is easy, since nothing is ever saved in this format, but you have to remember to do it.
+2. Values are never negative. If you need negative numbers, store (value + offset) and subtract the offset in your
+   getter.
+3. Every field in the slot is sent together. That's exactly what you want for values that change now and then, but if
+   one field changes every tick, it drags the others along with it (only a few bytes, but still). Put values that
+   change all the time in a slot of their own.
+4. DataWatcher updates go to every player who can see the entity, not just its owner, so other players will get
+   these too. That's handy for flags like SHIELDED that change how the player looks.
+*/
+/**
+ * Step 6: A proxy stash that cleans up after itself
+ */
+/*
+In the 1.7.2 notes at the end of Part 1, a player's properties are stashed in a Map in CommonProxy when they die
+(or leave the End), and loadProxyData puts them back when the new player joins the world. PlayerEvent.Clone does this
+for you in 1.7.10, but if you still use the stash (for mods that need to run on 1.7.2, for example), it has a leak:
+loadProxyData reads the data but never removes it, and if a player disconnects before respawning, nobody ever reads
+it at all. On a long-running server, those entries pile up forever.
+
+It's also keyed on a String built from the player's name every time, and names can change; UUIDs can't.
+
+So let's give the stash some rules:
+1. Loading the data removes it. It's only needed once.
+2. Nothing stays longer than 'maxAge' (ten minutes by default); if a player hasn't respawned by then, they've almost
+   certainly left, and their properties were saved with the player anyway.
+3. There are never more than 'maxEntries' entries. If it fills up, the oldest goes first.
+
+A LinkedHashMap keeps its entries in the order they were added, which means the oldest is always first. That makes
+both limits cheap to check: for the age limit, look at entries from the front until one is young enough, and for the
+size limit, LinkedHashMap calls removeEldestEntry for us after every put.
+
+We'll also count hits (data found and loaded), misses (nothing there) and evictions (thrown away unread), so you can
+see whether the limits are about right. Lots of evictions with few hits means maxAge is too short, or maxEntries too
+small.
+*/
+public class CommonProxy
+{
+	/** Maximum number of players whose data is stashed at once */
+	public static int maxEntries = 256;
+
+	/** Maximum time to keep stashed data, in milliseconds */
+	public static long maxAge = 10 * 60 * 1000L;
+
+	/** Stashed data by player UUID, oldest first */
+	private static final Map<UUID, StashedData> extendedEntityData = new LinkedHashMap<UUID, StashedData>() {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<UUID, StashedData> eldest) {
+			if (size() > maxEntries) {
+				++evictions;
+				return true;
+			}
+			return false;
+		}
+	};
+
+	private static long hits, misses, evictions;
+
+	private static final class StashedData
+	{
+		private final NBTTagCompound compound;
+		private final long time;
+
+		private StashedData(NBTTagCompound compound, long time) {
+			this.compound = compound;
+			this.time = time;
+		}
+	}
+
+	/**
+	 * Stashes the data until removeEntityData is called for the same UUID, or it gets too old
+	 */
+	public static synchronized void storeEntityData(UUID uuid, NBTTagCompound compound)
+	{
+		expire();
+		// Remove first, so a player who dies twice goes to the back of the line
+		extendedEntityData.remove(uuid);
+		extendedEntityData.put(uuid, new StashedData(compound, System.currentTimeMillis()));
+	}
+
+	/**
+	 * Removes and returns the stashed data for the UUID, or null if there isn't any
+	 */
+	public static synchronized NBTTagCompound removeEntityData(UUID uuid)
+	{
+		expire();
+		StashedData data = extendedEntityData.remove(uuid);
+		if (data == null) {
+			++misses;
+			return null;
+		}
+		++hits;
+		return data.compound;
+	}
+
+	/**
+	 * Throws away everything older than maxAge; the oldest entries are first, so we can stop at the first young one
+	 */
+	private static void expire()
+	{
+		long oldest = System.currentTimeMillis() - maxAge;
+		Iterator<StashedData> iterator = extendedEntityData.values().iterator();
+		while (iterator.hasNext() && iterator.next().time < oldest) {
+			iterator.remove();
+			++evictions;
+		}
+	}
+
+	public static synchronized String getStats()
+	{
+		return extendedEntityData.size() + " stashed, " + hits + " hits, " + misses + " misses, " + evictions + " evictions";
+	}
+}
+/*
+ExtendedPlayer's getSaveKey goes away entirely, and the two methods that use the stash just use the player's UUID:
+*/
+public static final void saveProxyData(EntityPlayer player)
+{
+	NBTTagCompound savedData = new NBTTagCompound();
+	ExtendedPlayer.get(player).saveNBTData(savedData);
+	CommonProxy.storeEntityData(player.getUniqueID(), savedData);
+}
+
+public static final void loadProxyData(EntityPlayer player)
+{
+	ExtendedPlayer playerData = ExtendedPlayer.get(player);
+	// Removing it means it can't leak, and can't be loaded twice by mistake
+	NBTTagCompound savedData = CommonProxy.removeEntityData(player.getUniqueID());
+	if (savedData != null) {
+		playerData.loadNBTData(savedData);
+	}
+	playerData.sync();
+}
+/*
+Note that loadProxyData is called every time a player joins the world, including when they first log in and when they
+change dimension, so you'll see plenty of misses; that's normal. What you're looking for is the evictions.
+
+To keep an eye on it, print the stats now and then, for example when the server stops:
+*/
+@EventHandler
+public void serverStopping(FMLServerStoppingEvent event)
+{
+	System.out.println("[TUT PROPS] Proxy stash: " + CommonProxy.getStats());
+}
+/*
+The methods are synchronized, just in case you ever call them from somewhere other than the server thread; they're so
+quick that it makes no difference otherwise.
+*/
+/**
+ * Step 7: Declaring each value once
+ */
+/*
+Count how many places know about max mana now: the column constant, saveNBTData, loadNBTData, copy(), the dirty bits,
+SyncManaMessage's toBytes, fromBytes and handler, and flushAll. Add a new value and you have to remember every one of
+them. Forget copy(), and the value silently resets every time a player dies; forget the message, and the client never
+hears about it. Nothing warns you.
+
+Instead, let's declare each value ONCE, with an annotation on its column constant saying what it's called and whether
+it should be saved and synced, and let ColumnView do the copying, saving, loading and syncing for every annotated
+column on its own. There's nothing to generate at build time: the first time a properties class is used, we look up
+its annotated constants (once!) and build a small 'schema' out of them. After that, everything is plain loops over
+int arrays, with no reflection and, for copying, no NBT anywhere.
+
+First the annotation:
+*/
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface Column
+{
+	/** Name used for the value in NBT */
+	String name();
+
+	/** Whether the value is saved with the entity; copying on respawn happens either way */
+	boolean save() default true;
+
+	/** Whether the value is sent to the client when it changes */
+	boolean sync() default true;
+}
+/*
+and the schema, built from a properties class' public static final int fields that have the annotation:
+*/
+public final class ColumnSchema
+{
+	private static final Map<Class<?>, ColumnSchema> schemas = new HashMap<Class<?>, ColumnSchema>();
+
+	/** NBT name by column index; null for columns without the annotation */
+	private final String[] names;
+
+	/** A bit for each annotated column, and for each that is saved or synced */
+	final int allBits, saveBits, syncBits;
+
+	private ColumnSchema(Class<?> type)
+	{
+		Map<Integer, Column> found = new TreeMap<Integer, Column>();
+		for (Field field : type.getFields()) {
+			Column column = field.getAnnotation(Column.class);
+			if (column == null) {
+				continue;
+			}
+			if (!Modifier.isStatic(field.getModifiers()) || field.getType() != int.class) {
+				throw new IllegalStateException("@Column only goes on static int constants: " + field);
+			}
+			try {
+				if (found.put(field.getInt(null), column) != null) {
+					throw new IllegalStateException("Two @Column constants with the same value in " + type.getName());
+				}
+			} catch (IllegalAccessException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		int all = 0, save = 0, sync = 0;
+		names = new String[found.isEmpty() ? 0 : ((TreeMap<Integer, Column>) found).lastKey() + 1];
+		for (Map.Entry<Integer, Column> entry : found.entrySet()) {
+			int bit = 1 << entry.getKey();
+			names[entry.getKey()] = entry.getValue().name();
+			all |= bit;
+			save |= (entry.getValue().save() ? bit : 0);
+			sync |= (entry.getValue().sync() ? bit : 0);
+		}
+		this.allBits = all;
+		this.saveBits = save;
+		this.syncBits = sync;
+	}
+
+	public static synchronized ColumnSchema of(Class<?> type)
+	{
+		ColumnSchema schema = schemas.get(type);
+		if (schema == null) {
+			schemas.put(type, schema = new ColumnSchema(type));
+		}
+		return schema;
+	}
+
+	String getName(int column)
+	{
+		return names[column];
+	}
+
+	int getSize()
+	{
+		return names.length;
+	}
+}
+/*
+Now ColumnView can do all the work. Add these to it; copyFrom replaces each class' copy(), and the default
+saveNBTData and loadNBTData replace theirs. The three empty methods at the end are for classes, like ExtendedPlayer, that
+need to tidy up a value before it's saved, or after it's loaded or synced.
+*/
+/**
+ * Copies every annotated column from the other view; used when a player is cloned, so no NBT is involved
+ */
+public final void copyFrom(ColumnView other)
+{
+	ColumnSchema schema = ColumnSchema.of(getClass());
+	for (int c = 0; c < schema.getSize(); ++c) {
+		if ((schema.allBits & (1 << c)) != 0) {
+			this.write(c, other.read(c));
+		}
+	}
+}
+
+/** Writes every saved column to the compound, by name */
+protected final void writeColumns(NBTTagCompound properties)
+{
+	beforeSave();
+	ColumnSchema schema = ColumnSchema.of(getClass());
+	for (int c = 0; c < schema.getSize(); ++c) {
+		if ((schema.saveBits & (1 << c)) != 0) {
+			properties.setInteger(schema.getName(c), this.read(c));
+		}
+	}
+}
+
+/** Reads every saved column from the compound; columns that aren't there keep their current value */
+protected final void readColumns(NBTTagCompound properties)
+{
+	ColumnSchema schema = ColumnSchema.of(getClass());
+	for (int c = 0; c < schema.getSize(); ++c) {
+		if ((schema.saveBits & (1 << c)) != 0 && properties.hasKey(schema.getName(c))) {
+			this.write(c, properties.getInteger(schema.getName(c)));
+		}
+	}
+	afterLoad();
+}
+
+@Override
+public void saveNBTData(NBTTagCompound compound)
+{
+	NBTTagCompound properties = new NBTTagCompound();
+	writeColumns(properties);
+	compound.setTag(name, properties);
+}
+
+@Override
+public void loadNBTData(NBTTagCompound compound)
+{
+	readColumns(compound.getCompoundTag(name));
+}
+
+@Override
+public void init(Entity entity, World world) {}
+
+/**
+ * Returns a message with the values of the synced columns whose bits are set
+ */
+public final SyncColumnsMessage createSyncMessage(int bits)
+{
+	bits &= ColumnSchema.of(getClass()).syncBits;
+	int[] values = new int[Integer.bitCount(bits)];
+	for (int c = 0, i = 0; i < values.length; ++c) {
+		if ((bits & (1 << c)) != 0) {
+			values[i++] = this.read(c);
+		}
+	}
+	return new SyncColumnsMessage(name, bits, values);
+}
+
+/**
+ * Sets the columns from a sync message; values are in column order, one for each bit
+ */
+public final void applySync(int bits, int[] values)
+{
+	bits &= ColumnSchema.of(getClass()).syncBits;
+	for (int c = 0, i = 0; i < values.length && bits >>> c != 0; ++c) {
+		if ((bits & (1 << c)) != 0) {
+			this.write(c, values[i++]);
+		}
+	}
+	afterSync();
+}
+
+protected void beforeSave() {}
+protected void afterLoad() {}
+protected void afterSync() {}
+/*
+The message replaces SyncManaMessage, and works for any properties class: it carries the properties' name, the bits,
+and the values. Both the bits and the values are written as 'varints', which take a single byte for small numbers,
+so a typical mana update is now just a few bytes plus the name:
+*/
+public class SyncColumnsMessage implements IMessage
+{
+	private String name;
+	private int bits;
+	private int[] values;
+
+	public SyncColumnsMessage() {}
+
+	public SyncColumnsMessage(String name, int bits, int[] values) {
+		this.name = name;
+		this.bits = bits;
+		this.values = values;
+	}
+
+	@Override
+	public void toBytes(ByteBuf buffer) {
+		ByteBufUtils.writeUTF8String(buffer, name);
+		ByteBufUtils.writeVarInt(buffer, bits, 5);
+		for (int value : values) {
+			ByteBufUtils.writeVarInt(buffer, value, 5);
+		}
+	}
+
+	@Override
+	public void fromBytes(ByteBuf buffer) {
+		name = ByteBufUtils.readUTF8String(buffer);
+		bits = ByteBufUtils.readVarInt(buffer, 5);
+		values = new int[Integer.bitCount(bits)];
+		for (int i = 0; i < values.length; ++i) {
+			values[i] = ByteBufUtils.readVarInt(buffer, 5);
+		}
+	}
+
+	public static class Handler implements IMessageHandler<SyncColumnsMessage, IMessage> {
+		@Override
+		public IMessage onMessage(SyncColumnsMessage message, MessageContext ctx) {
+			IExtendedEntityProperties props = Minecraft.getMinecraft().thePlayer.getExtendedProperties(message.name);
+			if (props instanceof ColumnView) {
+				((ColumnView) props).applySync(message.bits, message.values);
+			}
+			return null;
+		}
+	}
+}
+/*
+Now ExtendedPlayer only has to declare its columns. DIRTY has no annotation, so it's never saved, copied or sent. We
+don't save LAST_UPDATE (see Step 4), but we do sync and copy it. Since the curve is now two synced columns, setting mana
+has to mark both of them dirty:
+*/
+@Column(name = "CurrentMana")
+public static final int MANA_AT_TIME = 0;
+
+@Column(name = "MaxMana")
+public static final int MAX_MANA = 1;
+
+public static final int DIRTY = 2;
+
+@Column(name = "ManaTime", save = false)
+public static final int LAST_UPDATE = 3;
+
+public static final int DIRTY_CURRENT_MANA = (1 << MANA_AT_TIME) | (1 << LAST_UPDATE), DIRTY_MAX_MANA = 1 << MAX_MANA, DIRTY_ALL = DIRTY_CURRENT_MANA | DIRTY_MAX_MANA;
+/*
+Delete saveNBTData, loadNBTData, init, copy and setCurve from ExtendedPlayer. What used to be special about saving and
+loading goes in the hooks: before saving, we move the curve up to now, so the saved mana is the current mana; after
+loading, the curve starts now.
+*/
+@Override
+protected void beforeSave()
+{
+	int mana = this.getCurrentMana();
+	int now = this.getTime();
+	int progress = (mana < this.read(MAX_MANA) ? Math.max(now - this.read(LAST_UPDATE), 0) % ticksPerPoint : 0);
+	this.write(MANA_AT_TIME, mana);
+	this.write(LAST_UPDATE, now - progress);
+}
+
+@Override
+protected void afterLoad()
+{
+	this.write(LAST_UPDATE, this.getTime());
+}
+/*
+In flushAll, the packet is now built by the player's own properties:
+*/
+EntityPlayerMP owner = (EntityPlayerMP) store.getOwner(slot);
+PacketDispatcher.sendTo(ExtendedPlayer.get(owner).createSyncMessage(dirty[slot]), owner);
+/*
+and the Clone event uses copyFrom:
+*/
+@SubscribeEvent
+public void onClonePlayer(PlayerEvent.Clone event)
+{
+	ExtendedPlayer.get(event.entityPlayer).copyFrom(ExtendedPlayer.get(event.original));
+}
+/*
+ExtendedLiving annotates its GOLD column the same way, '@Column(name = "Gold", sync = false)', since the client never
+needs it. Its saveNBTData still goes to getEntityData(), but the body becomes:
+*/
+NBTTagCompound properties = new NBTTagCompound();
+writeColumns(properties);
+this.entity.getEntityData().setTag(EXT_PROP_NAME, properties);
+
+// and get() loads the saved data with readColumns(saved) right after creating the properties
+/*
+Now adding a value really is a one line job (plus its getter and setter): give it a column number and a @Column, and
+bump the number of columns in the constructor. It's saved, loaded, copied on respawn and synced, and none of those can
+ever be forgotten. If two constants end up with the same number, ColumnSchema throws an exception the first time the
+class is used, rather than quietly mixing the values up.
+*/
+/**
+ * Step 8: Saving as a few bytes instead of a compound
+ */
+/*
+Look at what one player's properties turn into when they're saved: a compound called "ExtendedPlayer", with an int
+called "CurrentMana" and an int called "MaxMana". That's 50 bytes, and only 8 of them are our numbers; the rest is tag
+types and names, written for every player on every save. Loading means looking both names up in a HashMap. It's not
+much for one player, but it's the same overhead for every value you add, for every player and every mob with gold,
+and it's all in memory in the stash from Step 6 as well.
+
+Since Step 7, the schema already knows which columns are saved, so we can write them however we like. Let's write
+them as a single byte array tag with:
+
+1. One byte for the 'data version', so we can tell how old the data is.
+2. The saved columns' bits, so we know which values follow. A column added later just isn't in old data yet, and a
+   column that's been removed is skipped when reading.
+3. Each value, as a 'varint': 7 bits per byte, with the top bit saying whether another byte follows, so anything up
+   to 127 takes a single byte. Values are 'zigzag' encoded first (0, -1, 1, -2, 2 ... become 0, 1, 2, 3, 4 ...), since a
+   negative varint would always take 5 bytes.
+
+With two small values, that's 25 bytes in all, and most of what's left is the tag's name. The more values you have,
+the bigger the difference.
+
+Data version
+------------
+Adding or removing a column doesn't need anything special, as said above. But if you ever change what a saved value
+MEANS (for example, storing mana in tenths of a point to allow fractions), bump the data version and convert the old
+values in migrate(). Data can be more than one version behind, so handle each version in turn.
+
+In ColumnView, replace the saveNBTData and loadNBTData from Step 7 with these:
+*/
+/** Returns the current version of the saved data; bump it whenever the meaning of a saved value changes */
+protected int getDataVersion()
+{
+	return 0;
+}
+
+/**
+ * Converts values saved with an older data version; values are by column index, and only those with bits set were
+ * read. Return the bits of the values to set, which will usually be the same bits.
+ */
+protected int migrate(int version, int bits, int[] values)
+{
+	return bits;
+}
+
+/**
+ * Returns the saved columns as a version byte, the bits of the saved columns and a zigzag varint for each of them
+ */
+protected final byte[] writeBinary()
+{
+	beforeSave();
+	ColumnSchema schema = ColumnSchema.of(getClass());
+	ByteBuf buffer = Unpooled.buffer(2 + 5 * Integer.bitCount(schema.saveBits));
+	buffer.writeByte(getDataVersion());
+	ByteBufUtils.writeVarInt(buffer, schema.saveBits, 5);
+	for (int c = 0; c < schema.getSize(); ++c) {
+		if ((schema.saveBits & (1 << c)) != 0) {
+			int value = this.read(c);
+			ByteBufUtils.writeVarInt(buffer, (value << 1) ^ (value >> 31), 5);
+		}
+	}
+	return Arrays.copyOf(buffer.array(), buffer.writerIndex());
+}
+
+/**
+ * Reads data written by writeBinary, migrating it first if it's from an older version
+ */
+protected final void readBinary(byte[] data)
+{
+	ByteBuf buffer = Unpooled.wrappedBuffer(data);
+	int version = buffer.readUnsignedByte();
+	if (version > getDataVersion()) {
+		// Saved by a newer version of the mod; better to start over than to guess what the values mean
+		FMLLog.warning("[TUT PROPS] Ignoring %s data version %d, newer than %d", name, version, getDataVersion());
+		return;
+	}
+	int bits = ByteBufUtils.readVarInt(buffer, 5);
+	int[] values = new int[32 - Integer.numberOfLeadingZeros(bits)];
+	for (int c = 0; c < values.length; ++c) {
+		if ((bits & (1 << c)) != 0) {
+			int value = ByteBufUtils.readVarInt(buffer, 5);
+			values[c] = (value >>> 1) ^ -(value & 1);
+		}
+	}
+	load(version, bits, values);
+}
+
+/**
+ * Reads our data from the compound, whichever way it was saved; does nothing if there isn't any
+ */
+protected final void readAny(NBTTagCompound compound)
+{
+	if (compound.hasKey(name, Constants.NBT.TAG_BYTE_ARRAY)) {
+		readBinary(compound.getByteArray(name));
+	} else if (compound.hasKey(name, Constants.NBT.TAG_COMPOUND)) {
+		// Saved before this step, by name, which makes it version 0; the @Column names are the same ones Part 1 used
+		NBTTagCompound properties = compound.getCompoundTag(name);
+		ColumnSchema schema = ColumnSchema.of(getClass());
+		int bits = 0;
+		int[] values = new int[schema.getSize()];
+		for (int c = 0; c < values.length; ++c) {
+			if ((schema.saveBits & (1 << c)) != 0 && properties.hasKey(schema.getName(c))) {
+				values[c] = properties.getInteger(schema.getName(c));
+				bits |= 1 << c;
+			}
+		}
+		load(0, bits, values);
+	}
+}
+
+/**
+ * Migrates values read from data of the given version if it's older than ours, then sets the saved columns among them
+ */
+private void load(int version, int bits, int[] values)
+{
+	if (version < getDataVersion()) {
+		bits = migrate(version, bits, values);
+	}
+	bits &= ColumnSchema.of(getClass()).saveBits;
+	for (int c = 0; c < values.length; ++c) {
+		if ((bits & (1 << c)) != 0) {
+			this.write(c, values[c]);
+		}
+	}
+	afterLoad();
+}
+
+@Override
+public void saveNBTData(NBTTagCompound compound)
+{
+	compound.setByteArray(name, writeBinary());
+}
+
+@Override
+public void loadNBTData(NBTTagCompound compound)
+{
+	readAny(compound);
+}
+/*
+Existing worlds keep working: the old compound is read by name the first time, and saved the new way from then on.
+Old data has no version byte, so it counts as version 0 and goes through migrate() like any other old data. That
+means you can bump the data version even while some players still have the old compound saved.
+
+Note that loading no longer prints anything. Part 1's System.out.println on every load was fine for trying things
+out, but on a server it's a line of console output for every player and every chunk full of mobs.
+
+For ExtendedLiving, which saves into getEntityData(), saveNBTData becomes:
+*/
+this.entity.getEntityData().setByteArray(EXT_PROP_NAME, writeBinary());
+/*
+getSavedData returns Forge's whole compound (still null if there isn't one, or it doesn't have our key), and get()
+calls readAny on it.
+
+For example, if you did decide to store mana in tenths, this is all ExtendedPlayer would need:
+*/
+@Override
+protected int getDataVersion()
+{
+	return 1;
+}
+
+@Override
+protected int migrate(int version, int bits, int[] values)
+{
+	if (version < 1) {
+		// Version 0 saved whole points
+		values[MANA_AT_TIME] *= 10;
+		values[MAX_MANA] *= 10;
+	}
+	return bits;
+}
+/*
+Don't actually add that unless you're changing mana to tenths, of course!
+
+If you'd like to see the difference for yourself, here's a quick comparison you can run from anywhere on the server
+with a player handy. CompressedStreamTools.write writes a compound exactly as it goes into the player's file (before
+compression):
+*/
+NBTTagCompound oldStyle = new NBTTagCompound();
+NBTTagCompound properties = new NBTTagCompound();
+properties.setInteger("CurrentMana", 50);
+properties.setInteger("MaxMana", 50);
+oldStyle.setTag(ExtendedPlayer.EXT_PROP_NAME, properties);
+NBTTagCompound newStyle = new NBTTagCompound();
+ExtendedPlayer.get(player).saveNBTData(newStyle);
+
+// Load each one a while first without timing it, so both are timed with the JIT warmed up
+for (NBTTagCompound compound : new NBTTagCompound[] {oldStyle, newStyle}) {
+	for (int i = 0; i < 100000; ++i) {
+		ExtendedPlayer.get(player).loadNBTData(compound);
+	}
+}
+for (NBTTagCompound compound : new NBTTagCompound[] {oldStyle, newStyle}) {
+	ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	CompressedStreamTools.write(compound, new DataOutputStream(bytes));
+	long start = System.nanoTime();
+	for (int i = 0; i < 100000; ++i) {
+		ExtendedPlayer.get(player).loadNBTData(compound);
+	}
+	System.out.println("[TUT PROPS] " + bytes.size() + " bytes, " + (System.nanoTime() - start) / 100000 + " ns per load");
+}
+/**
+ * Step 9: Saving players in the background
+ */
+/*
+Our properties are saved along with the player, in the player's .dat file, on the server thread. For a couple of
+ints that's nothing, but if you keep something big in your properties (a custom inventory, or a quest log with
+hundreds of entries), every autosave has to serialize and write all of it for every player while the server waits.
+That's when players start noticing a hiccup every 45 seconds.
+
+The fix is to split saving in two:
+1. On the server thread, take a 'snapshot': a copy of the data that nothing else will ever change. This must be
+   cheap. For us, it's the byte array from Step 8.
+2. On a background thread, write the snapshot to a file of our own, next to the player's .dat file.
+
+Forge tells us when a player's file is saved and loaded with PlayerEvent.SaveToFile and PlayerEvent.LoadFromFile, and
+getPlayerFile gives us a file next to the player's own, named after their UUID.
+
+A few things make the writer worth the trouble:
+1. Coalescing. Snapshots wait in a map by UUID, so if a player is saved again before the last one was written, the
+   new snapshot simply replaces it. Only the newest is ever written.
+2. Batching. The writer waits a moment ('batchDelay') before writing, so a whole autosave's worth of players goes out
+   together, and flushes all of them to the disk (with sync(), which is Java's fsync) in one go.
+3. Bounded. There can only be 'maxPending' snapshots waiting; if the disk can't keep up, submit waits for room rather
+   than using more and more memory.
+4. Never half written. Each player has TWO files, and each write has a sequence number and a checksum. The writer
+   always writes over the file that does NOT hold the newest save that made it to the disk, so if the server crashes
+   halfway through writing one file (or a write fails), the other still has the last good save, and loading picks
+   the newest file whose checksum is correct. Note that it's the writer that picks the file, when it writes, not
+   submit: with coalescing, we can't know ahead of time which snapshots will actually be written.
+
+Here's the writer:
+*/
+public final class PlayerDataWriter implements Runnable
+{
+	/** Maximum number of snapshots waiting to be written before submit waits */
+	public static int maxPending = 1024;
+
+	/** Maximum number of files written and flushed together */
+	public static int batchSize = 64;
+
+	/** Milliseconds to wait for more snapshots before writing a batch */
+	public static long batchDelay = 500;
+
+	private static final class Snapshot
+	{
+		private final UUID uuid;
+		/** The player's two files; when read from the disk, fileA is the one it was read from and fileB is null */
+		private final File fileA, fileB;
+		private final long sequence;
+		private final byte[] data;
+
+		private Snapshot(UUID uuid, File fileA, File fileB, long sequence, byte[] data) {
+			this.uuid = uuid;
+			this.fileA = fileA;
+			this.fileB = fileB;
+			this.sequence = sequence;
+			this.data = data;
+		}
+	}
+
+	/** Snapshots waiting to be written, oldest first; a snapshot stays here until it's on the disk */
+	private final Map<UUID, Snapshot> pending = new LinkedHashMap<UUID, Snapshot>();
+
+	/** Last sequence number used for each player; only used on the server thread */
+	private final Map<UUID, Long> sequences = new HashMap<UUID, Long>();
+
+	/** The file holding each player's newest save that is safely on the disk; only used on the writer thread */
+	private final Map<UUID, File> lastWritten = new HashMap<UUID, File>();
+
+	private final Thread thread;
+
+	private boolean running = true;
+
+	public PlayerDataWriter()
+	{
+		thread = new Thread(this, "Tutorial Props Writer");
+		thread.start();
+	}
+
+	/**
+	 * Queues the data to be written to one of the two files; data must never be changed afterward
+	 */
+	public void submit(UUID uuid, File fileA, File fileB, byte[] data)
+	{
+		Long last = sequences.get(uuid);
+		if (last == null) {
+			Snapshot newest = readNewest(fileA, fileB);
+			last = (newest != null ? newest.sequence : 0L);
+		}
+		long sequence = last + 1;
+		sequences.put(uuid, sequence);
+		Snapshot snapshot = new Snapshot(uuid, fileA, fileB, sequence, data);
+		synchronized (pending) {
+			if (!running) {
+				throw new IllegalStateException("Player data writer has already stopped");
+			}
+			while (pending.size() >= maxPending && !pending.containsKey(uuid)) {
+				// Full, so there's no point in the writer waiting for more; wake it up if it is
+				pending.notifyAll();
+				waitQuietly(0);
+			}
+			boolean wasEmpty = pending.isEmpty();
+			// Remove first, so the replaced snapshot goes to the back of the line like a new one
+			pending.remove(uuid);
+			pending.put(uuid, snapshot);
+			// Only wake the writer when it's waiting for something to write, not while it's gathering a batch
+			if (wasEmpty) {
+				pending.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Returns the newest data for the player: still waiting to be written, or from whichever file is newest and
+	 * not corrupt. Returns null if there isn't any.
+	 */
+	public byte[] read(UUID uuid, File fileA, File fileB)
+	{
+		synchronized (pending) {
+			Snapshot snapshot = pending.get(uuid);
+			if (snapshot != null) {
+				return snapshot.data;
+			}
+		}
+		Snapshot newest = readNewest(fileA, fileB);
+		sequences.put(uuid, newest != null ? newest.sequence : 0L);
+		return (newest != null ? newest.data : null);
+	}
+
+	/**
+	 * Writes everything still waiting and stops the writer; call when the server has stopped
+	 */
+	public void stop()
+	{
+		synchronized (pending) {
+			running = false;
+			pending.notifyAll();
+		}
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public void run()
+	{
+		while (true) {
+			List<Snapshot> batch = new ArrayList<Snapshot>();
+			synchronized (pending) {
+				while (pending.isEmpty() && running) {
+					waitQuietly(0);
+				}
+				if (pending.isEmpty()) {
+					return; // stopped, and everything is written
+				}
+				// Give the rest of an autosave a chance to arrive, and repeat saves a chance to replace these. Wait until
+				// the deadline, not just until the next notify, or every submit would cut the wait short.
+				long deadline = System.currentTimeMillis() + batchDelay;
+				long left;
+				while (running && pending.size() < Math.min(batchSize, maxPending) && (left = deadline - System.currentTimeMillis()) > 0) {
+					waitQuietly(left);
+				}
+				for (Snapshot snapshot : pending.values()) {
+					batch.add(snapshot);
+					if (batch.size() == batchSize) {
+						break;
+					}
+				}
+			}
+			writeBatch(batch);
+			synchronized (pending) {
+				for (Snapshot snapshot : batch) {
+					// Only if nothing newer came in while we were writing
+					if (pending.get(snapshot.uuid) == snapshot) {
+						pending.remove(snapshot.uuid);
+					}
+				}
+				pending.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Writes every file in the batch, then flushes them all to the disk
+	 */
+	private void writeBatch(List<Snapshot> batch)
+	{
+		List<Snapshot> written = new ArrayList<Snapshot>(batch.size());
+		List<File> targets = new ArrayList<File>(batch.size());
+		List<FileOutputStream> streams = new ArrayList<FileOutputStream>(batch.size());
+		for (Snapshot snapshot : batch) {
+			File target = getTarget(snapshot);
+			FileOutputStream out = null;
+			try {
+				out = new FileOutputStream(target);
+				DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+				data.writeLong(snapshot.sequence);
+				data.writeInt(snapshot.data.length);
+				data.write(snapshot.data);
+				data.writeLong(getChecksum(snapshot.sequence, snapshot.data));
+				data.flush();
+				written.add(snapshot);
+				targets.add(target);
+				streams.add(out);
+			} catch (IOException e) {
+				// The other file still has the last good save, and stays the one to keep
+				FMLLog.severe("[TUT PROPS] Could not write %s: %s", target, e);
+				closeQuietly(out);
+			}
+		}
+		for (int i = 0; i < written.size(); ++i) {
+			try {
+				streams.get(i).getFD().sync();
+				// Only now is this the newest save on the disk, so next time, write over the other file
+				lastWritten.put(written.get(i).uuid, targets.get(i));
+			} catch (IOException e) {
+				FMLLog.severe("[TUT PROPS] Could not flush %s: %s", targets.get(i), e);
+			}
+			closeQuietly(streams.get(i));
+		}
+	}
+
+	/**
+	 * Returns the file to write the snapshot to: whichever of the player's two files does NOT hold their newest save
+	 * on the disk. The first time a player is written, we find out by reading both files.
+	 */
+	private File getTarget(Snapshot snapshot)
+	{
+		File newest = lastWritten.get(snapshot.uuid);
+		if (newest == null) {
+			Snapshot onDisk = readNewest(snapshot.fileA, snapshot.fileB);
+			newest = (onDisk != null ? onDisk.fileA : snapshot.fileB);
+			lastWritten.put(snapshot.uuid, newest);
+		}
+		return (newest.equals(snapshot.fileA) ? snapshot.fileB : snapshot.fileA);
+	}
+
+	/**
+	 * Returns whichever of the two files has the highest sequence number and a correct checksum, or null
+	 */
+	private static Snapshot readNewest(File fileA, File fileB)
+	{
+		Snapshot a = readFile(fileA);
+		Snapshot b = readFile(fileB);
+		if (a == null || b == null) {
+			return (a != null ? a : b);
+		}
+		return (a.sequence > b.sequence ? a : b);
+	}
+
+	private static Snapshot readFile(File file)
+	{
+		if (!file.isFile()) {
+			return null;
+		}
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			long sequence = in.readLong();
+			int length = in.readInt();
+			if (length < 0 || length > file.length()) {
+				return null;
+			}
+			byte[] data = new byte[length];
+			in.readFully(data);
+			return (in.readLong() == getChecksum(sequence, data) ? new Snapshot(null, file, null, sequence, data) : null);
+		} catch (IOException e) {
+			// Includes running out of file halfway, which is what a crash while writing looks like
+			return null;
+		} finally {
+			closeQuietly(in);
+		}
+	}
+
+	private static long getChecksum(long sequence, byte[] data)
+	{
+		CRC32 crc = new CRC32();
+		for (int shift = 56; shift >= 0; shift -= 8) {
+			crc.update((int) (sequence >>> shift));
+		}
+		crc.update(data);
+		return crc.getValue();
+	}
+
+	/** Only call while holding the lock on pending */
+	private void waitQuietly(long millis)
+	{
+		try {
+			pending.wait(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static void closeQuietly(Closeable closeable)
+	{
+		if (closeable != null) {
+			try {
+				closeable.close();
+			} catch (IOException e) {}
+		}
+	}
+}
+/*
+The writer only lives as long as the server does, since a single player world can be opened and closed many times.
+In your main mod class:
+*/
+public static PlayerDataWriter playerDataWriter;
+
+@EventHandler
+public void serverStarting(FMLServerStartingEvent event)
+{
+	playerDataWriter = new PlayerDataWriter();
+}
+
+@EventHandler
+public void serverStopped(FMLServerStoppedEvent event)
+{
+	// By now every player has been saved for the last time, so this writes out everything that's left
+	playerDataWriter.stop();
+	playerDataWriter = null;
+}
+/*
+ExtendedPlayer needs a way to take a snapshot and put one back, and no longer saves anything with the player. It still
+LOADS from the player, so data saved before this step isn't lost; the first background save takes over from there.
+*/
+/** Returns a copy of the saved data, which is safe to hand to another thread */
+public final byte[] snapshot()
+{
+	return this.writeBinary();
+}
+
+public final void restore(byte[] data)
+{
+	this.readBinary(data);
+}
+
+@Override
+public void saveNBTData(NBTTagCompound compound)
+{
+	// Saved by the PlayerDataWriter instead; see the SaveToFile handler
+}
+/*
+saveProxyData from Step 6 used saveNBTData, so change it to store the snapshot instead. loadNBTData already reads the
+byte array, so loadProxyData doesn't change:
+*/
+NBTTagCompound savedData = new NBTTagCompound();
+savedData.setByteArray(EXT_PROP_NAME, ExtendedPlayer.get(player).snapshot());
+CommonProxy.storeEntityData(player.getUniqueID(), savedData);
+/*
+And the two events, in the event handler. Both happen on the server thread, when vanilla saves or loads the player's
+.dat file:
+*/
+@SubscribeEvent
+public void onPlayerSave(PlayerEvent.SaveToFile event)
+{
+	byte[] data = ExtendedPlayer.get(event.entityPlayer).snapshot();
+	TutorialMain.playerDataWriter.submit(UUID.fromString(event.playerUUID), event.getPlayerFile("tutprops.a"), event.getPlayerFile("tutprops.b"), data);
+}
+
+@SubscribeEvent
+public void onPlayerLoad(PlayerEvent.LoadFromFile event)
+{
+	byte[] data = TutorialMain.playerDataWriter.read(UUID.fromString(event.playerUUID), event.getPlayerFile("tutprops.a"), event.getPlayerFile("tutprops.b"));
+	if (data != null) {
+		ExtendedPlayer.get(event.entityPlayer).restore(data);
+	}
+}
+/*
+Notice that read() looks in the pending snapshots first. If a player logs out and straight back in, their last save
+might not be on the disk yet, and the file would give us the save before it.
+
+Some things to keep in mind:
+
+1. The snapshot must really be a copy. If you keep an inventory in your properties, copy the ItemStacks (or write
+   them to bytes) on the server thread; handing the writer your actual ItemStacks means it could save them halfway
+   through being changed.
+2. If a write fails, it's logged, and the player's other file still has the save before it. Nothing is retried,
+   since the next autosave will try again anyway.
+3. The sequences and lastWritten maps have an entry for every player who joined since the server started. That's a
+   Long and a File each, so it's not worth cleaning up.
+4. A crash can still lose whatever was waiting in the writer, at most batchDelay plus the time to write a batch.
+   Vanilla loses everything since the last autosave in a crash anyway, so that's no worse than before.
+*/
+/**
+ * Step 10: Letting other players see your properties
+ */
+/*
+So far, each player only ever hears about their own properties. But what if you want to show your party members' mana
+bars, or how much gold a mob is carrying when you look at it? Then other players need to know too.
+
+The easy way is to send every change to every player. With 100 players that's 100 packets for every change, and
+since every player's mana changes now and then, it grows with the number of players SQUARED. Most of those packets
+are for entities the receiving player can't even see.
+
+Luckily, vanilla already knows who can see what. The server's EntityTracker keeps, for every entity, the set of
+players close enough to be sent its movement (how close depends on the kind of entity), and Forge lets us ask for
+it with getTrackingPlayers. Those are the only players who could possibly show anything about that entity, so those
+are the only players we send to.
+
+Two more things keep the packet count down:
+1. Distance. A player right next to you should see your mana bar change right away, but one 60 blocks away won't
+   notice if it's a second late. Changes wait until the entity's 'turn' for that distance: every tick up close, every
+   5 ticks a little further away, and every 20 ticks at the edge of the tracking range. Changes that wait are just
+   combined with the next ones.
+2. Batching. Everything a player should hear about in one tick, their own properties and everyone else's, goes into a
+   single packet.
+
+Which columns other players get to see is up to you, so @Column gets one more setting:
+*/
+/** Whether the value is also sent to other players who can see the entity */
+boolean watched() default false;
+/*
+ColumnSchema gets a 'watchedBits', filled in just like syncBits. ColumnView gets a few small methods, and applySync
+accepts watched columns as well as synced ones, since the same message now carries both:
+*/
+public final Entity getEntity()
+{
+	return entity;
+}
+
+public final String getName()
+{
+	return name;
+}
+
+public final int getSyncBits()
+{
+	return ColumnSchema.of(getClass()).syncBits;
+}
+
+public final int getWatchedBits()
+{
+	return ColumnSchema.of(getClass()).watchedBits;
+}
+
+/**
+ * Returns whether the player may see our watched columns; the player is always close enough to see the entity.
+ * Override this to only show things to some players, for example only to members of the same party.
+ */
+public boolean isVisibleTo(EntityPlayerMP player)
+{
+	return true;
+}
+
+/**
+ * Writes the bits and the values of the columns whose bits are set, as varints
+ */
+final void writeSync(ByteBuf buffer, int bits)
+{
+	ByteBufUtils.writeVarInt(buffer, bits, 5);
+	for (int c = 0; bits >>> c != 0; ++c) {
+		if ((bits & (1 << c)) != 0) {
+			ByteBufUtils.writeVarInt(buffer, this.read(c), 5);
+		}
+	}
+}
+
+// and in applySync:
+bits &= (schema.syncBits | schema.watchedBits);
+/*
+In ExtendedPlayer, mark the three mana columns as watched, for example '@Column(name = "MaxMana", watched = true)',
+and leave the rest alone.
+
+ExtendedLiving needs a dirty column of its own now, so the view gets 2 columns, and the client needs to know about
+gold after all; it just doesn't go to the mob's "owner", since it doesn't have one:
+*/
+@Column(name = "Gold", sync = false, watched = true)
+public static final int GOLD = 0;
+
+public static final int DIRTY = 1;
+
+public void addGold(int amount)
+{
+	this.write(GOLD, Math.max(0, this.read(GOLD) + amount));
+	if (!this.entity.worldObj.isRemote) {
+		this.write(DIRTY, this.read(DIRTY) | (1 << GOLD));
+	}
+}
+/*
+Now for the channel itself. It replaces ExtendedPlayer.flushAll from Step 3: at the end of each tick, it goes through
+both kinds of properties in every World, looking for dirty bits just like before. A player's own synced columns go to
+that player, and the watched columns go to every player tracking the entity. Those are collected in a map for each
+player, and then each player gets one packet with everything that's due.
+*/
+public final class SyncChannel
+{
+	/** How often, in ticks, a watcher hears about changes to an entity: within 16 blocks, 48 blocks, and further */
+	public static int nearInterval = 1, mediumInterval = 5, farInterval = 20;
+
+	/** Changes waiting to be sent to each player, as bits by view; weak keys, so players who leave are forgotten */
+	private static final Map<EntityPlayerMP, Map<ColumnView, Integer>> pending = new WeakHashMap<EntityPlayerMP, Map<ColumnView, Integer>>();
+
+	private static int tick;
+
+	/** Number of packets sent since the server started */
+	public static long packetsSent;
+
+	/**
+	 * Adds the columns to what the player will hear about the view
+	 */
+	public static void add(EntityPlayerMP player, ColumnView view, int bits)
+	{
+		if (bits == 0) {
+			return;
+		}
+		Map<ColumnView, Integer> views = pending.get(player);
+		if (views == null) {
+			pending.put(player, views = new LinkedHashMap<ColumnView, Integer>());
+		}
+		Integer old = views.get(view);
+		views.put(view, (old != null ? old | bits : bits));
+	}
+
+	/**
+	 * Collects this tick's changes and sends everything that's due; call once per tick, at the end
+	 */
+	public static void flushAll()
+	{
+		++tick;
+		for (WorldServer world : MinecraftServer.getServer().worldServers) {
+			collect(world, ExtendedPlayer.EXT_PROP_NAME, ExtendedPlayer.DIRTY);
+			collect(world, ExtendedLiving.EXT_PROP_NAME, ExtendedLiving.DIRTY);
+		}
+		Iterator<Map.Entry<EntityPlayerMP, Map<ColumnView, Integer>>> iterator = pending.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<EntityPlayerMP, Map<ColumnView, Integer>> entry = iterator.next();
+			if (entry.getKey().isDead) {
+				// Left, or respawned as a new player entity
+				iterator.remove();
+			} else {
+				send(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Hands each dirty view in the store to its owner and its watchers, and clears the dirty bits
+	 */
+	private static void collect(WorldServer world, String name, int dirtyColumn)
+	{
+		PropertyStore store = PropertyStore.getIfPresent(world, name);
+		if (store == null) {
+			return;
+		}
+		int[] dirty = store.getColumn(dirtyColumn);
+		for (int slot = 0; slot < store.size(); ++slot) {
+			if (dirty[slot] == 0) {
+				continue;
+			}
+			Entity entity = store.getOwner(slot);
+			ColumnView view = (ColumnView) entity.getExtendedProperties(name);
+			if (entity instanceof EntityPlayerMP) {
+				add((EntityPlayerMP) entity, view, dirty[slot] & view.getSyncBits());
+			}
+			int watched = dirty[slot] & view.getWatchedBits();
+			if (watched != 0) {
+				for (EntityPlayer watcher : world.getEntityTracker().getTrackingPlayers(entity)) {
+					if (view.isVisibleTo((EntityPlayerMP) watcher)) {
+						add((EntityPlayerMP) watcher, view, watched);
+					}
+				}
+			}
+			dirty[slot] = 0;
+		}
+	}
+
+	/**
+	 * Sends the player one packet with every change that's due; changes to far away entities wait for their turn
+	 */
+	private static void send(EntityPlayerMP player, Map<ColumnView, Integer> views)
+	{
+		BatchSyncMessage message = null;
+		Iterator<Map.Entry<ColumnView, Integer>> iterator = views.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<ColumnView, Integer> entry = iterator.next();
+			Entity entity = entry.getKey().getEntity();
+			if (entity.isDead || entity.worldObj != player.worldObj) {
+				// The player won't be tracking it anymore, so there's nobody to tell
+				iterator.remove();
+				continue;
+			}
+			// Adding the entity id spreads each distance's turns out over the ticks
+			if (entity != player && (tick + entity.getEntityId()) % getInterval(player.getDistanceSqToEntity(entity)) != 0) {
+				continue;
+			}
+			if (message == null) {
+				message = new BatchSyncMessage();
+			}
+			message.add(entry.getKey(), entry.getValue());
+			iterator.remove();
+		}
+		if (message != null) {
+			PacketDispatcher.sendTo(message, player);
+			++packetsSent;
+		}
+	}
+
+	private static int getInterval(double distanceSq)
+	{
+		return (distanceSq < 16 * 16 ? nearInterval : distanceSq < 48 * 48 ? mediumInterval : farInterval);
+	}
+}
+/*
+The message replaces SyncColumnsMessage from Step 7, which you can delete, along with createSyncMessage. Each entry is
+an entity id, which properties it's for, and the bits and values from writeSync. Since a packet might have dozens of
+mobs' gold in it, the properties names are written once at the start, and each entry just uses a byte saying which
+one it means.
+
+The entries are written on the server thread, as soon as they're added, so the values are exactly what they were
+when the packet was put together.
+*/
+public class BatchSyncMessage implements IMessage
+{
+	private final List<String> names = new ArrayList<String>();
+	private ByteBuf entries = Unpooled.buffer();
+	private int count;
+
+	public BatchSyncMessage() {}
+
+	/** Server side only */
+	void add(ColumnView view, int bits) {
+		int index = names.indexOf(view.getName());
+		if (index < 0) {
+			index = names.size();
+			names.add(view.getName());
+		}
+		ByteBufUtils.writeVarInt(entries, view.getEntity().getEntityId(), 5);
+		entries.writeByte(index);
+		view.writeSync(entries, bits);
+		++count;
+	}
+
+	@Override
+	public void toBytes(ByteBuf buffer) {
+		buffer.writeByte(names.size());
+		for (String name : names) {
+			ByteBufUtils.writeUTF8String(buffer, name);
+		}
+		ByteBufUtils.writeVarInt(buffer, count, 5);
+		buffer.writeBytes(entries, 0, entries.writerIndex());
+	}
+
+	@Override
+	public void fromBytes(ByteBuf buffer) {
+		for (int i = buffer.readUnsignedByte(); i > 0; --i) {
+			names.add(ByteBufUtils.readUTF8String(buffer));
+		}
+		count = ByteBufUtils.readVarInt(buffer, 5);
+		// Copy into a plain array; buffer.readBytes(n) would give us a pooled buffer that nobody ever releases
+		byte[] bytes = new byte[buffer.readableBytes()];
+		buffer.readBytes(bytes);
+		entries = Unpooled.wrappedBuffer(bytes);
+	}
+
+	public static class Handler implements IMessageHandler<BatchSyncMessage, IMessage> {
+		@Override
+		public IMessage onMessage(BatchSyncMessage message, MessageContext ctx) {
+			World world = Minecraft.getMinecraft().theWorld;
+			for (int i = 0; i < message.count; ++i) {
+				Entity entity = world.getEntityByID(ByteBufUtils.readVarInt(message.entries, 5));
+				String name = message.names.get(message.entries.readUnsignedByte());
+				int bits = ByteBufUtils.readVarInt(message.entries, 5);
+				int[] values = new int[Integer.bitCount(bits)];
+				for (int v = 0; v < values.length; ++v) {
+					values[v] = ByteBufUtils.readVarInt(message.entries, 5);
+				}
+				// Always read the whole entry, even if the entity is gone, so the next one starts in the right place
+				ColumnView view = (entity != null ? getView(entity, name) : null);
+				if (view != null) {
+					view.applySync(bits, values);
+				}
+			}
+			return null;
+		}
+
+		private static ColumnView getView(Entity entity, String name) {
+			IExtendedEntityProperties props = entity.getExtendedProperties(name);
+			if (props == null && entity instanceof EntityLivingBase && ExtendedLiving.EXT_PROP_NAME.equals(name)) {
+				// The client only creates these when it hears about them
+				props = ExtendedLiving.getForWrite((EntityLivingBase) entity);
+			}
+			return (props instanceof ColumnView ? (ColumnView) props : null);
+		}
+	}
+}
+/*
+When a player comes into range of an entity, they need all of its watched values, not just the ones that change
+later. Forge tells us with PlayerEvent.StartTracking:
+*/
+@SubscribeEvent
+public void onStartTracking(PlayerEvent.StartTracking event)
+{
+	EntityPlayerMP player = (EntityPlayerMP) event.entityPlayer;
+	for (String name : new String[] {ExtendedPlayer.EXT_PROP_NAME, ExtendedLiving.EXT_PROP_NAME}) {
+		IExtendedEntityProperties props = event.target.getExtendedProperties(name);
+		if (props instanceof ColumnView && ((ColumnView) props).isVisibleTo(player)) {
+			SyncChannel.add(player, (ColumnView) props, ((ColumnView) props).getWatchedBits());
+		}
+	}
+}
+/*
+Last of all, call SyncChannel.flushAll() instead of ExtendedPlayer.flushAll() in onServerTick, and register
+BatchSyncMessage for the client side instead of SyncColumnsMessage.
+
+Now to show a party member's mana, just use ExtendedPlayer.get(otherPlayer).getCurrentMana() on the client, exactly
+like you would for yourself. Since the whole curve is watched, their bar fills up on its own too.
+
+A few notes:
+
+1. Mobs whose gold was never changed have no properties at all (see Step 1), so nothing is sent for them, and the
+   client can't work out their default gold because it doesn't know the world seed. If you want to show gold for
+   every mob, send the default in onStartTracking with getGold(), without creating properties on the server.
+2. A player never tracks themselves, so their own synced columns are added separately, and are never held back by
+   the distance check.
+3. How many packets does this send? With the packetsSent counter, compare against sending every change to every
+   player in the same dimension. With players spread out, most of them can't see each other, and with 100 players
+   you should see it go from around 100 packets per change to a handful.
+*/
+/**
+ * Step 11: Keeping network threads away from the columns
+ */
+/*
+There's something we've been ignoring since we switched to SimpleNetworkWrapper: in 1.7, message handlers are NOT
+called on the main thread. They're called on one of Netty's network threads, while the server (or client) thread is
+busy doing something else. So when a handler calls consumeMana, and the server thread calls consumeMana for the same
+player at the same moment, both can read the same mana, both subtract, and one of the two costs is simply lost. With
+columns it's even worse: if a new entity needs a slot and the store grows, a write from a network thread can land in
+the OLD array and vanish completely.
+
+Wrapping everything in 'synchronized' would work, but then the server thread could be kept waiting by the network,
+and every single read would pay for a lock, all to protect against something that only ever happens in handlers.
+
+Could we make consumeMana use compare-and-set instead, like an AtomicInteger? Not really. Since Step 4, 'current mana'
+is a curve in two columns, and a compare-and-set only covers one value at a time; and the columns themselves are
+plain int[] arrays that get swapped for bigger ones as the store grows. We'd have to give up most of what the last
+ten steps were for.
+
+So we turn it around: the columns belong to the thread that owns the World, and ONLY that thread touches them. A
+handler doesn't change anything itself; it puts a task in a queue, and the owning thread runs everything in the
+queue once per tick. consumeMana stays exactly as it is, and now it's always right.
+
+The queue is a ConcurrentLinkedQueue, which never locks: adding a task is a single compare-and-set, so any number of
+network threads can add tasks at once without ever waiting for each other or for the main thread. Only one thread
+ever takes tasks out. There's one queue for each side, since in single player the client and the integrated server
+both run in the same game:
+*/
+public final class MainThreadQueue
+{
+	private static final Queue<Runnable> server = new ConcurrentLinkedQueue<Runnable>();
+	private static final Queue<Runnable> client = new ConcurrentLinkedQueue<Runnable>();
+
+	/**
+	 * Runs the task on the main thread of the message's side, at the start of the next tick; safe from any thread
+	 */
+	public static void schedule(MessageContext ctx, Runnable task)
+	{
+		schedule(ctx.side, task);
+	}
+
+	public static void schedule(Side side, Runnable task)
+	{
+		(side.isServer() ? server : client).add(task);
+	}
+
+	/**
+	 * Runs every task waiting for the side, in the order they were added; call only from that side's main thread.
+	 * Returns the number of tasks run.
+	 */
+	public static int drain(Side side)
+	{
+		Queue<Runnable> queue = (side.isServer() ? server : client);
+		int count = 0;
+		Runnable task;
+		while ((task = queue.poll()) != null) {
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				// One bad message shouldn't stop the rest, or the server
+				FMLLog.log(Level.ERROR, e, "[TUT PROPS] Scheduled task failed");
+			}
+			++count;
+		}
+		return count;
+	}
+}
+/*
+Drain the queues at the START of each tick, so whatever the network sent is in place before anything else looks at
+it. In the same handler as onServerTick (both events are on the FML bus):
+*/
+@SubscribeEvent
+public void onServerTick(ServerTickEvent event)
+{
+	if (event.phase == Phase.START) {
+		MainThreadQueue.drain(Side.SERVER);
+	} else {
+		SyncChannel.flushAll();
+	}
+}
+
+// and in a client-only handler:
+@SubscribeEvent
+public void onClientTick(ClientTickEvent event)
+{
+	if (event.phase == Phase.START) {
+		MainThreadQueue.drain(Side.CLIENT);
+	}
+}
+/*
+Every handler that touches properties (or entities, or the World, for that matter) now hands the work over instead
+of doing it. Reading the message itself is fine from any thread, since nothing else uses it. For example, a message
+that casts a spell, sent by the client when the player presses a key:
+*/
+public static class Handler implements IMessageHandler<CastSpellMessage, IMessage> {
+	@Override
+	public IMessage onMessage(final CastSpellMessage message, MessageContext ctx) {
+		final EntityPlayerMP player = ctx.getServerHandler().playerEntity;
+		MainThreadQueue.schedule(ctx, new Runnable() {
+			@Override
+			public void run() {
+				if (ExtendedPlayer.get(player).consumeMana(message.cost)) {
+					// cast the spell
+				}
+			}
+		});
+		return null;
+	}
+}
+/*
+BatchSyncMessage from Step 10 gets the same treatment. Move the loop in its handler into a new method in the message,
+'void apply()', and the handler becomes:
+*/
+@Override
+public IMessage onMessage(final BatchSyncMessage message, MessageContext ctx) {
+	MainThreadQueue.schedule(ctx, new Runnable() {
+		@Override
+		public void run() {
+			message.apply();
+		}
+	});
+	return null;
+}
+/*
+A forgotten handler is an easy mistake to make, and it won't show up until two things happen in the same
+microsecond on a busy server. To catch it sooner, let's have the store remember the thread that created it (which is
+always the World's own thread, since views are only attached from there; see Step 2), and have ColumnView check it
+while you're testing. Add to PropertyStore:
+*/
+/** The thread the store belongs to; see ColumnView.checkThreads */
+final Thread thread = Thread.currentThread();
+/*
+and to ColumnView:
+*/
+/** Set to true while testing to catch properties being changed from the wrong thread, such as in a message handler */
+public static boolean checkThreads = false;
+
+protected final void write(int column, int value)
+{
+	if (store != null) {
+		if (checkThreads && Thread.currentThread() != store.thread) {
+			throw new IllegalStateException(name + " changed on " + Thread.currentThread().getName() + " instead of " + store.thread.getName());
+		}
+		store.getColumn(column)[slot] = value;
+	} else {
+		detached[column] = value;
+	}
+}
+/*
+Turn it on, play for a while, and every handler you missed will show up in the log with its stack trace. Detached
+views aren't checked, since they're not in a World yet, and nothing else can see them.
+
+If you'd like to see that no mana goes missing, here's a check you can run. Call start() from a command, and tick()
+from the END of onServerTick. It starts 8 threads pretending to be the network, each scheduling 10,000 tasks that
+spend 1 mana, while the server thread itself spends 1 mana every tick. Regeneration is turned off while it runs, so at
+the end the player must have EXACTLY the starting mana minus everything that was spent. Afterwards, the player gets
+back the max mana and mana they had before, and regeneration goes back to however it was set:
+*/
+public final class ManaStressCheck
+{
+	private static final int THREADS = 8, TASKS_PER_THREAD = 10000;
+
+	private static ExtendedPlayer props;
+	private static Thread[] threads;
+	private static int startMana, spentByServer;
+
+	/** What the check changes, to put back when it's done */
+	private static int savedMaxMana, savedMana;
+	private static boolean savedRegenEnabled;
+
+	public static void start(EntityPlayerMP player)
+	{
+		props = ExtendedPlayer.get(player);
+		savedMaxMana = props.getMaxMana();
+		savedMana = props.getCurrentMana();
+		savedRegenEnabled = ExtendedPlayer.regenEnabled;
+		ExtendedPlayer.regenEnabled = false;
+		props.setMaxMana(1000000);
+		props.replenishMana();
+		startMana = props.getCurrentMana();
+		spentByServer = 0;
+		threads = new Thread[THREADS];
+		for (int t = 0; t < THREADS; ++t) {
+			threads[t] = new Thread("Mana stress " + t) {
+				@Override
+				public void run() {
+					for (int i = 0; i < TASKS_PER_THREAD; ++i) {
+						MainThreadQueue.schedule(Side.SERVER, new Runnable() {
+							@Override
+							public void run() {
+								props.consumeMana(1);
+							}
+						});
+					}
+				}
+			};
+			threads[t].start();
+		}
+	}
+
+	public static void tick()
+	{
+		if (props == null) {
+			return;
+		}
+		props.consumeMana(1);
+		++spentByServer;
+		for (Thread thread : threads) {
+			if (thread.isAlive()) {
+				return;
+			}
+		}
+		// Every thread is done, but their last tasks might still be waiting
+		MainThreadQueue.drain(Side.SERVER);
+		int expected = startMana - THREADS * TASKS_PER_THREAD - spentByServer;
+		int actual = props.getCurrentMana();
+		System.out.println("[TUT PROPS] Mana stress check " + (actual == expected ? "passed" : "FAILED") + ": expected " + expected + ", got " + actual);
+		props.setMaxMana(savedMaxMana);
+		props.setCurrentMana(savedMana);
+		ExtendedPlayer.regenEnabled = savedRegenEnabled;
+		props = null;
+	}
+}
+/*
+For comparison, change the Runnable to call consumeMana directly instead of scheduling it, and turn off checkThreads.
+Run it a few times, and you'll see the check fail with mana left over: every lost update is a point of mana that
+was spent but never taken away.
+*/
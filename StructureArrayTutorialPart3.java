@@ -0,0 +1,433 @@
+/*
+STRUCTURE GENERATOR TOOL TUTORIAL PART 3: FILLING CHESTS IN BULK
+
+In Part 2 we filled our CUSTOM_CHEST by calling addItemToTileInventory over and over. That's
+fine for one chest in a tutorial house, but if your structures are loot-heavy, or you generate
+lots of them at once, it adds up quickly.
+
+Why? Every call to addItemToTileInventory starts looking at slot 0 and walks forward until it
+finds a slot that is empty or that holds the same item with room to spare. Fill a chest one
+stack at a time and each new stack has to walk past every stack you already added, so the work
+grows with the square of the number of slots. For a 27-slot chest that's hundreds of slot
+checks where 27 would have done.
+
+In this part we'll write a method that takes a whole List of ItemStacks, looks at the chest
+ONCE to figure out where there is room, and then puts everything away in a single pass.
+*/
+/**
+ * Step 1: A bulk alternative to addItemToTileInventory
+ */
+/*
+I put this in its own little helper class so it can be used from any structure generator, but
+you could just as well add the methods to MyStructureGenerator.
+
+The idea is simple:
+1. Scan the inventory one time. Remember which slots are empty, and which slots hold a stack
+   that isn't full yet (grouped by item id and damage so we can find them again instantly).
+2. For each stack we want to add, first top off any matching partial stacks, then drop the
+   rest into the next empty slot.
+3. Whatever didn't fit is returned to you, so you can decide what to do with it: put it in
+   another chest, drop it, or just ignore it.
+*/
+public class StructureInventoryHelper
+{
+    /**
+     * Adds as much of each stack in the list as will fit into the inventory at x/y/z and
+     * returns a list of whatever didn't fit. The stacks passed in are not modified.
+     * If there is no inventory at x/y/z, nothing is added and everything is returned.
+     */
+    public static List<ItemStack> fillTileInventory(World world, List<ItemStack> stacks, int x, int y, int z)
+    {
+        TileEntity te = world.getBlockTileEntity(x, y, z);
+        if (te instanceof IInventory) {
+            return fillInventory((IInventory) te, stacks);
+        }
+        System.out.println("[STRUCTURE] No inventory found at " + x + "/" + y + "/" + z + "; nothing was added.");
+        return new ArrayList<ItemStack>(stacks);
+    }
+
+    /**
+     * Adds as much of each stack in the list as will fit into the inventory, scanning the
+     * inventory only once, and returns a list of whatever didn't fit.
+     */
+    public static List<ItemStack> fillInventory(IInventory inventory, List<ItemStack> stacks)
+    {
+        List<ItemStack> leftovers = new ArrayList<ItemStack>();
+        int size = inventory.getSizeInventory();
+        int limit = inventory.getInventoryStackLimit();
+
+        // Partially filled slots, keyed by item id + damage (see getKey below)
+        Map<Long, List<Integer>> partial = new HashMap<Long, List<Integer>>();
+        // Empty slots, in order; 'nextEmpty' points at the first one we haven't used yet
+        int[] empty = new int[size];
+        int numEmpty = 0;
+        int nextEmpty = 0;
+
+        // This is the one and only time we look at every slot
+        for (int slot = 0; slot < size; ++slot) {
+            ItemStack current = inventory.getStackInSlot(slot);
+            if (current == null) {
+                empty[numEmpty++] = slot;
+            } else if (current.stackSize < Math.min(limit, current.getMaxStackSize())) {
+                addPartialSlot(partial, getKey(current), slot);
+            }
+        }
+
+        for (ItemStack original : stacks) {
+            if (original == null || original.stackSize < 1) {
+                continue;
+            }
+            // Work on a copy so we don't change the caller's stacks
+            ItemStack stack = original.copy();
+            int max = Math.min(limit, stack.getMaxStackSize());
+            long key = getKey(stack);
+
+            // First top off any partial stacks of the same item
+            List<Integer> slots = partial.get(key);
+            if (slots != null) {
+                Iterator<Integer> iterator = slots.iterator();
+                while (stack.stackSize > 0 && iterator.hasNext()) {
+                    ItemStack current = inventory.getStackInSlot(iterator.next());
+                    // Same id and damage, but enchantments, names etc. have to match too
+                    if (!ItemStack.areItemStackTagsEqual(current, stack)) {
+                        continue;
+                    }
+                    int moved = Math.min(stack.stackSize, max - current.stackSize);
+                    current.stackSize += moved;
+                    stack.stackSize -= moved;
+                    if (current.stackSize >= max) {
+                        iterator.remove();
+                    }
+                }
+            }
+
+            // Then put the rest into empty slots
+            while (stack.stackSize > 0 && nextEmpty < numEmpty) {
+                // Chests take anything, so this normally finds a slot on the first try; only
+                // picky inventories ever make us look further ahead
+                int found = nextEmpty;
+                while (found < numEmpty && !inventory.isItemValidForSlot(empty[found], stack)) {
+                    ++found;
+                }
+                if (found == numEmpty) {
+                    break;
+                }
+                int slot = empty[found];
+                empty[found] = empty[nextEmpty];
+                empty[nextEmpty++] = slot;
+
+                ItemStack placed = stack.splitStack(Math.min(stack.stackSize, max));
+                inventory.setInventorySlotContents(slot, placed);
+                // If it isn't full, later stacks of the same item can still go here
+                if (placed.stackSize < max) {
+                    addPartialSlot(partial, key, slot);
+                }
+            }
+
+            if (stack.stackSize > 0) {
+                leftovers.add(stack);
+            }
+        }
+
+        // We changed stack sizes directly above, so let the inventory know once at the end
+        inventory.onInventoryChanged();
+        return leftovers;
+    }
+
+    /**
+     * Returns a key that is the same for any two stacks of the same item id and damage value
+     */
+    private static long getKey(ItemStack stack)
+    {
+        return ((long) stack.itemID << 32) | (stack.getItemDamage() & 0xFFFFFFFFL);
+    }
+
+    private static void addPartialSlot(Map<Long, List<Integer>> partial, long key, int slot)
+    {
+        List<Integer> slots = partial.get(key);
+        if (slots == null) {
+            slots = new LinkedList<Integer>();
+            partial.put(key, slots);
+        }
+        slots.add(slot);
+    }
+}
+/*
+A few notes on the above:
+
+- Damageable items like swords and armor have a max stack size of 1, so they never end up in
+  the 'partial' map and go straight into empty slots.
+- I use a LinkedList for the partial slots because full slots get removed from the middle of
+  the list while we are iterating over it.
+- The stacks you pass in are copied before being split up, so you can safely keep a single
+  List of stacks around and use it for every chest of a given kind.
+*/
+/**
+ * Step 2: Using it in onCustomBlockAdded
+ */
+/*
+Remember our very first CUSTOM_CHEST from Part 2?
+*/
+boolean canAdd;
+do {
+    canAdd = addItemToTileInventory(world, new ItemStack(Item.diamond, 64), x, y, z);
+    if (canAdd) canAdd = addItemToTileInventory(world, new ItemStack(Item.emerald, 64), x, y, z);
+} while (canAdd);
+/*
+Here it is again using our new method. We build up the list of everything we'd like in the
+chest, then hand the whole thing over at once. We don't even need to know how big the chest
+is; anything that doesn't fit simply comes back in the returned list.
+*/
+@Override
+public void onCustomBlockAdded(World world, int x, int y, int z, int fakeID, int customData1, int customData2)
+{
+    switch(fakeID) {
+    case CustomHooks.CUSTOM_CHEST:
+        List<ItemStack> loot = new ArrayList<ItemStack>();
+        // More than enough to fill a single chest, alternating diamonds and emeralds
+        for (int i = 0; i < 28; ++i) {
+            loot.add(new ItemStack(i % 2 == 0 ? Item.diamond : Item.emerald, 64));
+        }
+        List<ItemStack> leftovers = StructureInventoryHelper.fillTileInventory(world, loot, x, y, z);
+        // Just so you can see it's working:
+        System.out.println("[STRUCTURE] Custom chest filled; " + leftovers.size() + " stacks didn't fit.");
+        break;
+    }
+}
+/*
+The same goes for the CHEST_HOUSE_1 and CHEST_HOUSE_2 subtypes: instead of five separate calls
+to addItemToTileInventory, put the five ItemStacks in a List and call fillTileInventory once.
+Better yet, since the contents never change, you can build those Lists one time in a static
+initializer and reuse them for every chest; fillInventory copies the stacks, so it's safe.
+
+In the next step we'll do something more interesting with those subtypes and customData2.
+*/
+/**
+ * Step 3: Weighted loot tables for chest subtypes
+ */
+/*
+Back in Part 2 I suggested using customData1 as a chest 'subtype' and customData2 for the
+number of items to pick from a weighted list, like vanilla chests do. Let's actually build
+that now.
+
+Vanilla already gives us a nice class for describing weighted chest loot:
+WeightedRandomChestContents(itemID, damage, minStackSize, maxStackSize, weight)
+so we'll use that for our entries. That also means you can hand it any of the vanilla lists
+if you want your structure to have, say, dungeon loot.
+
+What we won't use is vanilla's way of picking from the list. WeightedRandom adds up all the
+weights and then walks down the list until it reaches the random number it rolled, so every
+pick costs more the longer your list is. That's no problem for one chest, but if you generate
+thousands of chests (pregenerating a big world, for example), it's worth doing better.
+
+There's a neat trick called the 'alias method' (Walker's alias method, if you want to look
+it up) that turns a weighted list into two arrays ONE time, after which every pick takes the
+same tiny amount of work no matter how many entries there are:
+
+1. Scale every weight so the average is exactly 1.
+2. Give every entry its own 'column'. Entries with a scaled weight less than 1 don't fill
+   their column, so top it off with a piece of an entry that has more than 1, and remember
+   which entry that was (its 'alias'). Repeat until every column is exactly full.
+3. To pick, choose a random column, then flip a weighted coin: either the column's own entry
+   or its alias.
+
+The math works out so every entry comes up exactly as often as its weight says it should.
+*/
+public class StructureLootTable
+{
+    /** All loot tables, keyed by the chest subtype stored in customData1 */
+    private static final Map<Integer, StructureLootTable> tables = new HashMap<Integer, StructureLootTable>();
+
+    /** The entries in this table */
+    private final WeightedRandomChestContents[] entries;
+
+    /** Number of picks to make when customData2 isn't set */
+    private final int defaultRolls;
+
+    /** Chance that a column picks its own entry instead of its alias */
+    private final double[] probability;
+
+    /** The entry to pick for each column when it doesn't pick its own */
+    private final int[] alias;
+
+    public StructureLootTable(WeightedRandomChestContents[] entries, int defaultRolls)
+    {
+        this.entries = entries;
+        this.defaultRolls = defaultRolls;
+        int n = entries.length;
+        this.probability = new double[n];
+        this.alias = new int[n];
+
+        double total = 0.0D;
+        for (WeightedRandomChestContents entry : entries) {
+            total += entry.itemWeight;
+        }
+
+        // Scale the weights so they average out to exactly 1, then sort every entry into
+        // either 'small' (less than 1) or 'large' (1 or more)
+        double[] scaled = new double[n];
+        int[] small = new int[n];
+        int[] large = new int[n];
+        int numSmall = 0, numLarge = 0;
+        for (int i = 0; i < n; ++i) {
+            scaled[i] = entries[i].itemWeight * n / total;
+            if (scaled[i] < 1.0D) {
+                small[numSmall++] = i;
+            } else {
+                large[numLarge++] = i;
+            }
+        }
+
+        // Top off each small entry's column with a piece of a large entry
+        while (numSmall > 0 && numLarge > 0) {
+            int s = small[--numSmall];
+            int l = large[--numLarge];
+            probability[s] = scaled[s];
+            alias[s] = l;
+            // The large entry gave away part of its weight, so it might be small now
+            scaled[l] = (scaled[l] + scaled[s]) - 1.0D;
+            if (scaled[l] < 1.0D) {
+                small[numSmall++] = l;
+            } else {
+                large[numLarge++] = l;
+            }
+        }
+
+        // Whatever is left fills its own column (anything in 'small' here is only due to rounding)
+        while (numLarge > 0) {
+            probability[large[--numLarge]] = 1.0D;
+        }
+        while (numSmall > 0) {
+            probability[small[--numSmall]] = 1.0D;
+        }
+    }
+
+    /**
+     * Registers a loot table for the given chest subtype; call this once for each subtype,
+     * for example from your structure generator's static initializer
+     */
+    public static final void register(int subtype, StructureLootTable table)
+    {
+        if (tables.containsKey(subtype)) {
+            System.out.println("[STRUCTURE] WARNING: loot table for chest subtype " + subtype + " is being replaced!");
+        }
+        tables.put(subtype, table);
+    }
+
+    /**
+     * Returns the loot table for the given chest subtype, or null if none was registered
+     */
+    public static final StructureLootTable get(int subtype)
+    {
+        return tables.get(subtype);
+    }
+
+    /**
+     * Returns a Random that is always the same for the same world seed and position, so if the
+     * structure is generated again at the same spot in the same world, it gets the same loot
+     */
+    public static final Random getRandom(World world, int x, int y, int z)
+    {
+        // Large odd numbers spread neighboring positions far apart, much like vanilla does for chunk seeds
+        long seed = world.getSeed() ^ (x * 341873128712L + y * 42317861L + z * 132897987541L);
+        return new Random(seed);
+    }
+
+    /**
+     * Picks one entry from the table; always takes the same time no matter how big the table is
+     */
+    public WeightedRandomChestContents pick(Random rand)
+    {
+        int column = rand.nextInt(entries.length);
+        return entries[rand.nextDouble() < probability[column] ? column : alias[column]];
+    }
+
+    /**
+     * Picks 'rolls' entries from the table and returns the resulting ItemStacks; if rolls
+     * is less than 1, the table's default number of rolls is used instead
+     */
+    public List<ItemStack> generateLoot(Random rand, int rolls)
+    {
+        List<ItemStack> loot = new ArrayList<ItemStack>();
+        int n = (rolls > 0 ? rolls : defaultRolls);
+        for (int i = 0; i < n; ++i) {
+            WeightedRandomChestContents entry = pick(rand);
+            int min = entry.theMinimumChanceToGenerateItem;
+            int max = entry.theMaximumChanceToGenerateItem;
+            int count = min + (max > min ? rand.nextInt(max - min + 1) : 0);
+            // Split the count into proper stacks, just like vanilla chests do
+            int maxStack = entry.theItemId.getMaxStackSize();
+            while (count > 0) {
+                ItemStack stack = entry.theItemId.copy();
+                stack.stackSize = Math.min(count, maxStack);
+                count -= stack.stackSize;
+                loot.add(stack);
+            }
+        }
+        return loot;
+    }
+}
+/*
+Now we need some tables. Using the same subtypes we defined in CustomHooks in Part 2, add
+something like this to MyStructureGenerator's static initializer. Notice that the first table
+is the same kind of loot we hard-coded before, but now it's random (and weighted):
+*/
+static {
+    // Potions: mostly regular ones, with the occasional splash potion
+    StructureLootTable.register(CustomHooks.CHEST_HOUSE_1, new StructureLootTable(new WeightedRandomChestContents[] {
+        new WeightedRandomChestContents(Item.potion.itemID, 8206, 1, 1, 10),
+        new WeightedRandomChestContents(Item.potion.itemID, 8270, 1, 1, 10),
+        new WeightedRandomChestContents(Item.potion.itemID, 8193, 1, 1, 10),
+        new WeightedRandomChestContents(Item.potion.itemID, 16385, 1, 1, 2)
+    }, 4)); // if customData2 isn't set, roll 4 times
+
+    // The family heirlooms, plus some bread in case you get hungry
+    StructureLootTable.register(CustomHooks.CHEST_HOUSE_2, new StructureLootTable(new WeightedRandomChestContents[] {
+        new WeightedRandomChestContents(Item.swordIron.itemID, 128, 1, 1, 5),
+        new WeightedRandomChestContents(Item.plateIron.itemID, 128, 1, 1, 5),
+        new WeightedRandomChestContents(Item.helmetIron.itemID, 72, 1, 1, 5),
+        new WeightedRandomChestContents(Item.legsIron.itemID, 128, 1, 1, 5),
+        new WeightedRandomChestContents(Item.bootsIron.itemID, 72, 1, 1, 5),
+        new WeightedRandomChestContents(Item.bread.itemID, 0, 1, 4, 20)
+    }, 5));
+
+    // ... and all your structures, same as before
+}
+/*
+And finally the CUSTOM_CHEST case. Since all of the subtypes are handled by the loot table, it
+gets a lot shorter than our old if / else if chain, and it stays that way no matter how many
+subtypes you add:
+*/
+@Override
+public void onCustomBlockAdded(World world, int x, int y, int z, int fakeID, int customData1, int customData2)
+{
+    switch(fakeID) {
+    case CustomHooks.CUSTOM_CHEST:
+        StructureLootTable table = StructureLootTable.get(customData1);
+        if (table != null) {
+            // customData2 is the number of rolls; leave it out to use the table's default
+            Random rand = StructureLootTable.getRandom(world, x, y, z);
+            StructureInventoryHelper.fillTileInventory(world, table.generateLoot(rand, customData2), x, y, z);
+        } else {
+            // We can still use customData1/2 as itemID and stack size for generic chests
+            addItemToTileInventory(world, new ItemStack(customData1, customData2, 0), x, y, z);
+        }
+        break;
+    }
+}
+/*
+Now this chest in your block array:
+{CustomHooks.CUSTOM_CHEST,2,CustomHooks.CHEST_HOUSE_2,8}
+
+will get 8 picks from the heirloom table, and this one:
+{CustomHooks.CUSTOM_CHEST,2,CustomHooks.CHEST_HOUSE_2}
+
+will get the default of 5.
+
+Why did I make getRandom instead of just using world.rand? Because world.rand gives different
+results every time, so if you generate the same structure in the same spot of the same world
+(for example, deleting the region files and letting it regenerate), you'd get different loot.
+Seeding from the world seed and the chest's position means the same seed gives the same loot
+every time, which makes testing a whole lot easier, too. If you WANT every chest to be a
+surprise, just pass in world.rand instead.
+*/
@@ -0,0 +1,1641 @@
+/*
+STRUCTURE GENERATOR TOOL TUTORIAL PART 4: COMPACT STRUCTURE STORAGE
+
+By now you've probably noticed that block arrays repeat themselves. A LOT. Look at the roof of
+our tutorial house, layer y = 3: that's 25 copies of {Block.wood.blockID}. And when we made
+blockArrayTutorial1 and blockArrayTutorial2 in Part 2, we copied the entire house just to change
+a single chest.
+
+Java doesn't know any of that is a copy. Every {Block.wood.blockID} you write is a brand new
+int[] object in memory, every row is another array, and so on. For the tutorial house it doesn't
+matter, but with a few dozen big structures in your mod, it really adds up.
+
+In this part we will:
+1. 'Intern' identical cells, rows and layers so every copy in every structure shares one array
+2. Find runs of identical cells in each row, so placing a stretch of wall or floor only has to
+   work out the block and metadata once, and stretches of 'nothing' can be skipped in one step
+
+If you've never heard the word 'intern' in Java, it's the same thing String.intern() does: if
+an equal String was already seen, you get back that one instead of keeping a second copy.
+*/
+/**
+ * Step 1: The StructureCompiler
+ */
+/*
+We'll intern from the inside out. First each cell, e.g. {Block.wood.blockID}, then each row
+(the x arrays, which hold the z cells), then each layer (the y arrays, which hold the rows).
+
+Because we intern the cells first, two rows are equal only if they hold the very SAME cell
+objects in the same order, which is very quick to check. Same for layers and rows. We look
+everything up by its hash, so each new array only has to be compared against the few arrays
+that happen to have the same hash.
+
+IMPORTANT: Once an array has been interned, it may be shared by several structures, so you must
+NEVER change it afterwards. Changing one cell would change it in every structure using it!
+*/
+public class StructureCompiler
+{
+    /** Every distinct cell, row and layer we've seen, shared by all structures */
+    private static final Map<ArrayKey, int[]> cells = new HashMap<ArrayKey, int[]>();
+    private static final Map<ArrayKey, int[][]> rows = new HashMap<ArrayKey, int[][]>();
+    private static final Map<ArrayKey, int[][][]> layers = new HashMap<ArrayKey, int[][][]>();
+
+    /**
+     * Runs of identical cells for each distinct row; see getRuns below. Arrays are only ever equal
+     * to themselves, so this still looks rows up by identity, and since placing structures on
+     * worker threads (Part 5) calls getRuns while the main thread may be interning, it's a
+     * ConcurrentHashMap: reading it never waits for a lock.
+     */
+    private static final Map<int[][], int[]> runs = new ConcurrentHashMap<int[][], int[]>();
+
+    /** Approximate number of bytes used by the arrays before and after interning */
+    private static long bytesBefore, bytesAfter;
+
+    /**
+     * Returns a copy of the block array in which every cell, row and layer is shared with any
+     * identical one seen before. The array passed in is not changed, but the returned array
+     * must never be modified. Safe to call from any thread.
+     */
+    public static synchronized int[][][][] intern(int[][][][] blocks)
+    {
+        int[][][][] interned = new int[blocks.length][][][];
+        for (int y = 0; y < blocks.length; ++y) {
+            interned[y] = internLayer(blocks[y]);
+        }
+        bytesBefore += getArraySize(blocks.length);
+        bytesAfter += getArraySize(blocks.length);
+        return interned;
+    }
+
+    private static int[][][] internLayer(int[][][] layer)
+    {
+        int[][][] candidate = new int[layer.length][][];
+        for (int x = 0; x < layer.length; ++x) {
+            candidate[x] = internRow(layer[x]);
+        }
+        bytesBefore += getArraySize(layer.length);
+        ArrayKey key = new ArrayKey(candidate);
+        int[][][] existing = layers.get(key);
+        if (existing == null) {
+            layers.put(key, candidate);
+            bytesAfter += getArraySize(layer.length);
+            existing = candidate;
+        }
+        return existing;
+    }
+
+    private static int[][] internRow(int[][] row)
+    {
+        int[][] candidate = new int[row.length][];
+        for (int z = 0; z < row.length; ++z) {
+            candidate[z] = internCell(row[z]);
+        }
+        bytesBefore += getArraySize(row.length);
+        ArrayKey key = new ArrayKey(candidate);
+        int[][] existing = rows.get(key);
+        if (existing == null) {
+            rows.put(key, candidate);
+            runs.put(candidate, findRuns(candidate));
+            bytesAfter += getArraySize(row.length);
+            existing = candidate;
+        }
+        return existing;
+    }
+
+    private static int[] internCell(int[] cell)
+    {
+        bytesBefore += getArraySize(cell.length);
+        ArrayKey key = new ArrayKey(cell);
+        int[] existing = cells.get(key);
+        if (existing == null) {
+            // Store a copy, so nobody can change our shared cell through the original array
+            existing = cell.clone();
+            cells.put(new ArrayKey(existing), existing);
+            bytesAfter += getArraySize(cell.length);
+        }
+        return existing;
+    }
+
+    /**
+     * Returns the runs of identical cells in an interned row, stored as pairs of values:
+     * {start, length, start, length, ...}; the cell for each run is simply row[start]
+     */
+    public static int[] getRuns(int[][] row)
+    {
+        int[] rowRuns = runs.get(row);
+        // Rows that weren't interned still work, they just have to be scanned every time
+        return (rowRuns != null ? rowRuns : findRuns(row));
+    }
+
+    private static int[] findRuns(int[][] row)
+    {
+        int[] found = new int[row.length * 2];
+        int n = 0;
+        for (int z = 0; z < row.length; ++z) {
+            // Cells are interned, so identical cells are the very same object
+            if (n > 0 && row[z] == row[found[n - 2]]) {
+                ++found[n - 1];
+            } else {
+                found[n++] = z;
+                found[n++] = 1;
+            }
+        }
+        return Arrays.copyOf(found, n);
+    }
+
+    /**
+     * Rough size of an array in bytes: a 16 byte header plus 4 bytes per element, rounded up to 8.
+     * The exact number depends on your JVM, but it's plenty good enough for comparing.
+     */
+    private static long getArraySize(int length)
+    {
+        return (16 + 4L * length + 7) & ~7L;
+    }
+
+    /**
+     * Prints how many distinct cells, rows and layers are being stored and how much memory was saved
+     */
+    public static synchronized void printStats()
+    {
+        System.out.println("[STRUCTURE] Interned " + cells.size() + " cells, " + rows.size() + " rows and " + layers.size() + " layers");
+        System.out.println("[STRUCTURE] Approximate block array memory: " + bytesBefore + " bytes before, " + bytesAfter + " bytes after");
+    }
+
+    /**
+     * Wraps an array so it can be used as a HashMap key. For cells, the contents are compared;
+     * for rows and layers, the elements are already interned, so comparing them by reference
+     * is enough (and much quicker than comparing everything inside them).
+     */
+    private static final class ArrayKey
+    {
+        private final Object array;
+        private final int hash;
+
+        private ArrayKey(int[] cell) {
+            this.array = cell;
+            this.hash = Arrays.hashCode(cell);
+        }
+
+        private ArrayKey(Object[] elements) {
+            this.array = elements;
+            int h = 1;
+            for (Object element : elements) {
+                h = 31 * h + System.identityHashCode(element);
+            }
+            this.hash = h;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof ArrayKey)) {
+                return false;
+            }
+            Object other = ((ArrayKey) obj).array;
+            if (array instanceof int[] && other instanceof int[]) {
+                return Arrays.equals((int[]) array, (int[]) other);
+            }
+            if (array instanceof Object[] && other instanceof Object[]) {
+                Object[] a = (Object[]) array, b = (Object[]) other;
+                if (a.length != b.length) {
+                    return false;
+                }
+                for (int i = 0; i < a.length; ++i) {
+                    if (a[i] != b[i]) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            return false;
+        }
+    }
+}
+/**
+ * Step 2: Interning your block arrays
+ */
+/*
+Where should we call intern? You might think in MyStructureGenerator's static initializer, when
+we add the block array to the Structure. The problem is the original array would still be held
+by the static field in StructureArrayTutorial, so we wouldn't save any memory at all.
+
+Instead, intern the array right where it's declared. The array literal gets built, interned, and
+then the original is simply thrown away by the garbage collector:
+*/
+public class StructureArrayTutorial
+{
+    public static final int[][][][] blockArrayTutorial1 = StructureCompiler.intern(new int[][][][]
+    {
+        { // y = 1
+            // ... exactly the same as before ...
+        }
+    });
+
+    public static final int[][][][] blockArrayTutorial2 = StructureCompiler.intern(new int[][][][]
+    {
+        { // y = 1
+            // ... exactly the same as before ...
+        }
+    });
+}
+/*
+Note the 'new int[][][][]' in front of the opening bracket; you need that when the array isn't
+directly assigned to a variable.
+
+Nothing else changes! The interned array is still an int[][][][], so you add it to your
+Structure just like always, and StructureGeneratorBase will never know the difference.
+
+At the end of MyStructureGenerator's static initializer, after all the structures are added,
+print the stats to see how you did:
+*/
+StructureCompiler.printStats();
+/*
+For the two tutorial houses, you should see just a handful of distinct cells (wood, glass, air,
+the door halves, the bed halves, the torch and the chests), and the two houses share every layer
+but y = 1. In that layer, they even share every row except the one holding the chest that's
+different. The roof layer is now one array holding five references to one row holding five
+references to one {Block.wood.blockID}.
+*/
+/**
+ * Step 3: Placing runs of identical cells
+ */
+/*
+Interning also gives us something else for free: because identical cells are now the same
+object, finding runs of identical cells in a row is as easy as comparing references. The
+StructureCompiler already did that for every row it interned (see getRuns).
+
+StructureGeneratorBase doesn't know about runs, so to use them we need a placement method of
+our own. While we're at it, we'll also give ourselves a way to say "leave the world alone
+here": an empty cell {} (like in the blockArrayTemplate from Part 1). A whole run of empty cells
+gets skipped in one step, which is great for irregularly shaped structures that are mostly
+'nothing' in their corners.
+
+First we need to know how to turn array coordinates into world coordinates. Just as in the
+rest of the tool, facings follow vanilla's direction values (SOUTH = 0, WEST = 1, NORTH = 2,
+EAST = 3), and each increase by 1 is a quarter turn clockwise. I keep this in its own class,
+because we're going to need it again in later parts.
+*/
+public class StructureRotation
+{
+    /**
+     * Returns the number of clockwise quarter turns needed to turn a structure with the given
+     * default facing so that its front faces the requested direction
+     */
+    public static final int getRotations(int structureFacing, int facing)
+    {
+        return (facing - structureFacing + 4) % 4;
+    }
+
+    /**
+     * Returns the direction a structure's front should face to look at the player
+     */
+    public static final int getFacingToward(EntityPlayer player)
+    {
+        // This is the direction the player is looking; we want the opposite
+        int playerFacing = MathHelper.floor_double((double)(player.rotationYaw * 4.0F / 360.0F) + 0.5D) & 3;
+        return (playerFacing + 2) % 4;
+    }
+
+    /** Returns the world x offset for array position x/z after the given number of quarter turns */
+    public static final int getRotatedX(int x, int z, int rotations)
+    {
+        switch(rotations) {
+        case 1: return -z;
+        case 2: return -x;
+        case 3: return z;
+        default: return x;
+        }
+    }
+
+    /** Returns the world z offset for array position x/z after the given number of quarter turns */
+    public static final int getRotatedZ(int x, int z, int rotations)
+    {
+        switch(rotations) {
+        case 1: return x;
+        case 2: return -z;
+        case 3: return -x;
+        default: return z;
+        }
+    }
+}
+/*
+Now the placement method itself, which goes in MyStructureGenerator. It works in two passes,
+just like you'd place things by hand: first all of the blocks, then all of the custom hooks.
+That way, by the time onCustomBlockAdded fills a chest or hangs a painting, every wall is
+already there.
+
+For each run, we work out the real block id and rotated metadata ONE time and then set every
+block in the run. Custom hooks are still handled cell by cell, since each one needs its own
+onCustomBlockAdded call.
+
+The only thing we need from StructureGeneratorBase that it doesn't hand out is how it rotates
+metadata, so we'll write our own getRotatedMetadata. It's a switch on the block's
+BlockRotationData.Rotation type, and each case turns the metadata ONE clockwise quarter turn;
+for more turns, we just do it again. One turn takes south to west, west to north, north to
+east and east back to south, just like the facings.
+*/
+/**
+ * Generates the structure's block array with its lowest, x = 0, z = 0 corner at x/y/z,
+ * turned the given number of clockwise quarter turns
+ */
+public void generateCompact(World world, int[][][][] blocks, int rotations, int posX, int posY, int posZ)
+{
+    // Custom hooks are collected here and handled after all the blocks are placed
+    List<int[]> hooks = new ArrayList<int[]>();
+
+    for (int y = 0; y < blocks.length; ++y) {
+        for (int x = 0; x < blocks[y].length; ++x) {
+            int[][] row = blocks[y][x];
+            int[] runs = StructureCompiler.getRuns(row);
+            for (int r = 0; r < runs.length; r += 2) {
+                int start = runs[r], length = runs[r + 1];
+                int[] cell = row[start];
+                // Empty cells mean 'leave the world alone', so skip the whole run at once
+                if (cell.length == 0) {
+                    continue;
+                }
+                int fakeID = cell[0];
+                boolean isHook = fakeID >= 4096;
+                int customData1 = (cell.length > 2 ? cell[2] : 0);
+                // Work these out once for the whole run
+                int blockID = (isHook ? getRealBlockID(fakeID, customData1) : fakeID);
+                int meta = getRotatedMetadata(blockID, (cell.length > 1 ? cell[1] : 0), rotations);
+
+                for (int z = start; z < start + length; ++z) {
+                    int worldX = posX + StructureRotation.getRotatedX(x, z, rotations);
+                    int worldZ = posZ + StructureRotation.getRotatedZ(x, z, rotations);
+                    // Flag 2 sends the change to clients without notifying neighbors
+                    // for every single block; we'll deal with neighbors at the end
+                    world.setBlock(worldX, posY + y, worldZ, blockID, meta, 2);
+                    if (isHook) {
+                        hooks.add(new int[] {worldX, posY + y, worldZ, fakeID, customData1, (cell.length > 3 ? cell[3] : 0)});
+                    }
+                }
+            }
+        }
+    }
+
+    for (int[] hook : hooks) {
+        onCustomBlockAdded(world, hook[0], hook[1], hook[2], hook[3], hook[4], hook[5]);
+    }
+
+    // Now that everything is in place, let the ground underneath know the structure is there
+    int sizeX = blocks[0].length, sizeZ = blocks[0][0].length;
+    for (int x = 0; x < sizeX; ++x) {
+        for (int z = 0; z < sizeZ; ++z) {
+            int worldX = posX + StructureRotation.getRotatedX(x, z, rotations);
+            int worldZ = posZ + StructureRotation.getRotatedZ(x, z, rotations);
+            world.notifyBlocksOfNeighborChange(worldX, posY, worldZ, world.getBlockId(worldX, posY, worldZ));
+        }
+    }
+}
+
+/**
+ * Returns the metadata for the block after the structure is turned the given number of
+ * clockwise quarter turns
+ */
+protected int getRotatedMetadata(int blockID, int meta, int rotations)
+{
+    BlockRotationData.Rotation type = BlockRotationData.getBlockRotationType(blockID);
+    // Blocks that don't care about facing are never rotated
+    if (type == null) {
+        return meta;
+    }
+    for (int i = 0; i < rotations; ++i) {
+        meta = getRotatedOnce(type, blockID, meta);
+    }
+    return meta;
+}
+
+/**
+ * Returns the metadata after one clockwise quarter turn: south to west to north to east
+ */
+private int getRotatedOnce(BlockRotationData.Rotation type, int blockID, int meta)
+{
+    int extra;
+    switch(type) {
+    case ANVIL:
+    case GENERIC:
+    case REPEATER:
+        // Bits 0-1 are the facing, in the same order as ours: 0 south, 1 west, 2 north, 3 east
+        return (meta & ~3) | ((meta + 1) & 3);
+    case DOOR:
+        // Only the bottom half has a facing (0 east, 1 south, 2 west, 3 north); the top half
+        // has the hinge, which doesn't change when turning
+        return ((meta & 8) != 0 ? meta : (meta & ~3) | ((meta + 1) & 3));
+    case SIGNPOST:
+        // Sixteen steps around the circle, clockwise from south; a quarter turn is four steps
+        return (meta + 4) & 15;
+    case SKULL:
+    case PISTON_CONTAINER:
+        // 2 north, 3 south, 4 west, 5 east; 0 and 1 are down and up, and bit 8 is 'extended'
+        extra = meta & 8;
+        switch(meta & 7) {
+        case 2: return 5 | extra;
+        case 5: return 3 | extra;
+        case 3: return 4 | extra;
+        case 4: return 2 | extra;
+        default: return meta;
+        }
+    case STAIRS:
+        // 0 east, 1 west, 2 south, 3 north; bit 4 is upside down
+        extra = meta & ~3;
+        switch(meta & 3) {
+        case 0: return 2 | extra;
+        case 2: return 1 | extra;
+        case 1: return 3 | extra;
+        default: return 0 | extra;
+        }
+    case TRAPDOOR:
+        // Which wall it hangs on: 0 south, 1 north, 2 east, 3 west; bits 4 and 8 are open / top
+        extra = meta & ~3;
+        switch(meta & 3) {
+        case 0: return 3 | extra;
+        case 3: return 1 | extra;
+        case 1: return 2 | extra;
+        default: return 0 | extra;
+        }
+    case VINE:
+        // One bit per side: 1 south, 2 west, 4 north, 8 east
+        return ((meta << 1) | (meta >> 3)) & 15;
+    case WALL_MOUNTED:
+        // Torches, buttons and levers: pointing 1 east, 2 west, 3 south, 4 north; bit 8 is on
+        extra = meta & 8;
+        switch(meta & 7) {
+        case 1: return 3 | extra;
+        case 3: return 2 | extra;
+        case 2: return 4 | extra;
+        case 4: return 1 | extra;
+        }
+        // Levers on the floor (5, 6) and ceiling (7, 0) only have two ways to lie; torches on
+        // the floor (5) look the same from every side
+        if (blockID == Block.lever.blockID) {
+            switch(meta & 7) {
+            case 5: return 6 | extra;
+            case 6: return 5 | extra;
+            case 7: return 0 | extra;
+            case 0: return 7 | extra;
+            }
+        }
+        return meta;
+    case RAIL:
+        // 0 north-south, 1 east-west, 2-5 sloped up to the east, west, north and south, and
+        // (normal rails only) 6-9 curves: south-east, south-west, north-west, north-east.
+        // Powered and detector rails use bit 8 for 'on' instead of having curves.
+        extra = (blockID == Block.rail.blockID ? 0 : meta & 8);
+        switch(meta & ~extra) {
+        case 0: return 1 | extra;
+        case 1: return 0 | extra;
+        case 2: return 5 | extra;
+        case 5: return 3 | extra;
+        case 3: return 4 | extra;
+        case 4: return 2 | extra;
+        case 6: case 7: case 8: return (meta + 1);
+        case 9: return 6;
+        default: return meta;
+        }
+    case QUARTZ:
+        // Pillars: 2 upright, 3 north-south, 4 east-west
+        return (meta == 3 ? 4 : meta == 4 ? 3 : meta);
+    case WOOD:
+        // Bits 4 and 8 are the direction of the log: 4 east-west, 8 north-south; both is bark
+        extra = meta & 12;
+        return (extra == 4 || extra == 8 ? (meta & 3) | (12 - extra) : meta);
+    default:
+        return meta;
+    }
+}
+/*
+Using it from our hammer or block looks much the same as before, except we work out the
+rotations ourselves:
+*/
+int rotations = StructureRotation.getRotations(StructureGeneratorBase.WEST, StructureRotation.getFacingToward(player));
+YourMod.gen.generateCompact(world, StructureArrayTutorial.blockArrayTutorial1, rotations, x, y + 1, z);
+/*
+Keep in mind that generateCompact places the structure with its first corner at x/y/z, rather
+than worrying about the structure's offsets; add them to the position yourself if you need them.
+
+How much faster is it? For our little house, you won't notice. For a big build with long walls
+and floors, most of the work of working out block ids and metadata disappears, because it
+happens once per run instead of once per block. Try it with a big solid platform and time it
+with System.nanoTime() before and after generating; you'll see the difference.
+*/
+/**
+ * Step 4: Structure files
+ */
+/*
+Interning takes care of memory once the game is running, but the block arrays still have to be
+written out in Java and compiled into your mod. That has two downsides:
+
+1. All of those array literals end up as code in a static initializer, which makes your class
+   files big and slow to load.
+2. Java doesn't allow a single method to be bigger than 64KB, and a static initializer counts as
+   a method. Make one structure big enough and you'll be greeted with a 'code too large' error,
+   no matter how you split up your arrays in that class.
+
+So let's store structures in files instead. Here's the format we'll use; everything is big-endian,
+the same way DataOutputStream writes it:
+
+    int      magic number 'SGT1', so we know it's really one of our files
+    short    size y, size x, size z
+    int      palette size
+    palette  for each distinct cell: one byte for the number of values, then each value as an int
+    byte     bits per index
+    bytes    one palette index per cell, in y, x, z order, packed tightly using 'bits per index'
+             bits each, followed by two bytes of padding
+    int      number of hooks
+    ints     the position of every custom hook cell, in the same y, x, z order
+
+The 'palette' is just the list of distinct cells in the structure. Our tutorial house only has a
+dozen or so, so each cell in the file only needs 4 bits instead of a whole int[]. The hook table
+means we never have to look through the whole structure to find the custom hooks.
+
+Structures don't have to be perfectly rectangular in Java (rows can be different lengths), but
+they do in the file; any missing cells are written as empty cells {}, which, as we saw in Step 3,
+means 'leave the world alone'.
+*/
+public class StructureFile
+{
+    /** 'SGT1' in ASCII */
+    public static final int MAGIC = 0x53475431;
+
+    private final int sizeY, sizeX, sizeZ;
+
+    /** The distinct cells of this structure; decoded right away, as there are only a few */
+    private final int[][] palette;
+
+    private final int bitsPerIndex, indexMask;
+
+    /** Buffer holding the whole file and the position at which the packed indices start */
+    private final ByteBuffer buffer;
+    private final int indexStart;
+
+    /** Positions of all custom hook cells, in y, x, z order */
+    private final int[] hooks;
+
+    private StructureFile(ByteBuffer buffer) throws IOException
+    {
+        this.buffer = buffer;
+        if (buffer.getInt() != MAGIC) {
+            throw new IOException("Not a structure file");
+        }
+        sizeY = buffer.getShort() & 0xFFFF;
+        sizeX = buffer.getShort() & 0xFFFF;
+        sizeZ = buffer.getShort() & 0xFFFF;
+        palette = new int[buffer.getInt()][];
+        for (int i = 0; i < palette.length; ++i) {
+            palette[i] = new int[buffer.get()];
+            for (int j = 0; j < palette[i].length; ++j) {
+                palette[i][j] = buffer.getInt();
+            }
+        }
+        bitsPerIndex = buffer.get();
+        indexMask = (1 << bitsPerIndex) - 1;
+        indexStart = buffer.position();
+        buffer.position(indexStart + getPackedSize(sizeY * sizeX * sizeZ, bitsPerIndex));
+        hooks = new int[buffer.getInt()];
+        for (int i = 0; i < hooks.length; ++i) {
+            hooks[i] = buffer.getInt();
+        }
+    }
+
+    /**
+     * Loads the named structure, first looking for 'structures/name.sgt' in your config
+     * directory and then in your mod's assets. Files in the config directory are memory-mapped,
+     * so the operating system only reads the parts of the file we actually look at.
+     */
+    public static StructureFile load(String name, File configDir) throws IOException
+    {
+        File file = new File(configDir, "structures/" + name + ".sgt");
+        if (file.exists()) {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = raf.getChannel();
+                // The mapping stays valid even after the file is closed
+                return new StructureFile(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            } finally {
+                raf.close();
+            }
+        }
+        // Files inside the mod's jar can't be memory-mapped, so read them into a buffer
+        InputStream stream = StructureFile.class.getResourceAsStream("/assets/yourmodid/structures/" + name + ".sgt");
+        if (stream == null) {
+            throw new FileNotFoundException("No structure file found for " + name);
+        }
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] chunk = new byte[4096];
+            int read;
+            while ((read = stream.read(chunk)) != -1) {
+                bytes.write(chunk, 0, read);
+            }
+            return new StructureFile(ByteBuffer.wrap(bytes.toByteArray()));
+        } finally {
+            stream.close();
+        }
+    }
+
+    public int getSizeY() { return sizeY; }
+    public int getSizeX() { return sizeX; }
+    public int getSizeZ() { return sizeZ; }
+
+    /**
+     * Returns the cell at y/x/z; nothing is decoded until you ask for it. The same palette
+     * array is returned for every identical cell, so don't modify it!
+     */
+    public int[] getCell(int y, int x, int z)
+    {
+        return palette[getIndex((y * sizeX + x) * sizeZ + z)];
+    }
+
+    /**
+     * Fills the array provided with the cells of row y/x, so you can reuse one array for every row
+     */
+    public void getRow(int y, int x, int[][] row)
+    {
+        int position = (y * sizeX + x) * sizeZ;
+        for (int z = 0; z < sizeZ; ++z) {
+            row[z] = palette[getIndex(position + z)];
+        }
+    }
+
+    /**
+     * Returns the positions of all custom hook cells; use getPosition to split each into y/x/z
+     */
+    public int[] getHooks()
+    {
+        return hooks;
+    }
+
+    /**
+     * Returns {y, x, z} for a position from the hook table
+     */
+    public int[] getPosition(int position)
+    {
+        return new int[] {position / (sizeX * sizeZ), (position / sizeZ) % sizeX, position % sizeZ};
+    }
+
+    /**
+     * Returns the palette index stored at the given position
+     */
+    private int getIndex(int position)
+    {
+        long bit = (long) position * bitsPerIndex;
+        int i = indexStart + (int)(bit >>> 3);
+        // An index is at most 16 bits, so even with the shift it never spans more than 3 bytes
+        int value = (buffer.get(i) & 0xFF) | ((buffer.get(i + 1) & 0xFF) << 8) | ((buffer.get(i + 2) & 0xFF) << 16);
+        return (value >>> (int)(bit & 7)) & indexMask;
+    }
+
+    /**
+     * Returns the number of bytes needed to pack 'count' indices, including the padding
+     */
+    private static int getPackedSize(int count, int bits)
+    {
+        return (int)(((long) count * bits + 7) / 8) + 2;
+    }
+
+    /**
+     * Writes the block array to the file in the format described above
+     */
+    public static void write(int[][][][] blocks, File file) throws IOException
+    {
+        // Find the largest size in each direction, as rows may not all be the same length
+        int sizeY = blocks.length, sizeX = 0, sizeZ = 0;
+        for (int[][][] layer : blocks) {
+            sizeX = Math.max(sizeX, layer.length);
+            for (int[][] row : layer) {
+                sizeZ = Math.max(sizeZ, row.length);
+            }
+        }
+        if (sizeY > 0xFFFF || sizeX > 0xFFFF || sizeZ > 0xFFFF) {
+            throw new IOException("Structure is too big to write to a file");
+        }
+
+        // Identical cells share a palette entry. We key the palette by the cell's contents here
+        // rather than calling StructureCompiler.intern: exporting is a one-off, and there's no
+        // reason for it to fill the runtime tables (or their stats) with cells nothing will use
+        int[] empty = new int[0];
+        List<int[]> palette = new ArrayList<int[]>();
+        Map<String, Integer> paletteIndex = new HashMap<String, Integer>();
+        int[] indices = new int[sizeY * sizeX * sizeZ];
+        List<Integer> hooks = new ArrayList<Integer>();
+        for (int y = 0; y < sizeY; ++y) {
+            for (int x = 0; x < sizeX; ++x) {
+                for (int z = 0; z < sizeZ; ++z) {
+                    int position = (y * sizeX + x) * sizeZ + z;
+                    int[] cell = empty;
+                    if (x < blocks[y].length && z < blocks[y][x].length && blocks[y][x][z] != null) {
+                        cell = blocks[y][x][z];
+                    }
+                    String key = Arrays.toString(cell);
+                    Integer index = paletteIndex.get(key);
+                    if (index == null) {
+                        index = palette.size();
+                        palette.add(cell);
+                        paletteIndex.put(key, index);
+                    }
+                    indices[position] = index;
+                    if (cell.length > 0 && cell[0] >= 4096) {
+                        hooks.add(position);
+                    }
+                }
+            }
+        }
+        if (palette.size() > 0x10000) {
+            throw new IOException("Structure has too many different cells to write to a file");
+        }
+
+        // Use as few bits as possible for each index, but at least 1
+        int bits = 1;
+        while ((1 << bits) < palette.size()) {
+            ++bits;
+        }
+        byte[] packed = new byte[getPackedSize(indices.length, bits)];
+        for (int i = 0; i < indices.length; ++i) {
+            long bit = (long) i * bits;
+            int b = (int)(bit >>> 3);
+            int shifted = indices[i] << (int)(bit & 7);
+            packed[b] |= shifted;
+            packed[b + 1] |= shifted >>> 8;
+            packed[b + 2] |= shifted >>> 16;
+        }
+
+        file.getParentFile().mkdirs();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeShort(sizeY);
+            out.writeShort(sizeX);
+            out.writeShort(sizeZ);
+            out.writeInt(palette.size());
+            for (int[] cell : palette) {
+                out.writeByte(cell.length);
+                for (int value : cell) {
+                    out.writeInt(value);
+                }
+            }
+            out.writeByte(bits);
+            out.write(packed);
+            out.writeInt(hooks.size());
+            for (int position : hooks) {
+                out.writeInt(position);
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
+/**
+ * Step 5: Exporting your existing structures
+ */
+/*
+You don't want to build your structures in a hex editor, so let's turn the block arrays we
+already have into files. Since we're exporting, the arrays only need to exist in your dev
+environment; once the files are written, you can delete the arrays from your mod entirely.
+
+I export everything from a simple method that I call one time from my main mod class while
+developing, then comment out again. Note that the block ids are written as numbers, so export
+with the same block ids you'll be playing with.
+*/
+public static void exportStructures(File configDir)
+{
+    try {
+        StructureFile.write(StructureArrayTutorial.blockArrayTutorial1, new File(configDir, "structures/tutorial_home_1.sgt"));
+        StructureFile.write(StructureArrayTutorial.blockArrayTutorial2, new File(configDir, "structures/tutorial_home_2.sgt"));
+        System.out.println("[STRUCTURE] Structures exported to " + configDir);
+    } catch (IOException e) {
+        e.printStackTrace();
+    }
+}
+/*
+Call it from your FMLPreInitializationEvent method, where you can get the config directory:
+*/
+exportStructures(event.getModConfigurationDirectory());
+/*
+To ship a structure with your mod, copy the file into 'assets/yourmodid/structures/'. Anything
+in the config directory takes priority, which means server owners (and you, while testing) can
+swap in a different version of a structure without touching the jar.
+*/
+/**
+ * Step 6: Generating from a structure file
+ */
+/*
+Now we need to place a StructureFile. We'll reuse the same run-based placement we wrote in
+Step 3, so first pull the inside of generateCompact's row loop out into its own method. If
+'hooks' is null, hook cells still get their real block, but aren't collected for later:
+*/
+/**
+ * Places one row of cells at array position y/x, one run at a time; custom hook cells are
+ * added to 'hooks' (if not null) to be handled after all blocks are placed
+ */
+private void placeRow(World world, int[][] row, int[] runs, int y, int x, int rotations, int posX, int posY, int posZ, List<int[]> hooks)
+{
+    for (int r = 0; r < runs.length; r += 2) {
+        int start = runs[r], length = runs[r + 1];
+        int[] cell = row[start];
+        // Empty cells mean 'leave the world alone', so skip the whole run at once
+        if (cell.length == 0) {
+            continue;
+        }
+        int fakeID = cell[0];
+        boolean isHook = fakeID >= 4096;
+        int customData1 = (cell.length > 2 ? cell[2] : 0);
+        // Work these out once for the whole run
+        int blockID = (isHook ? getRealBlockID(fakeID, customData1) : fakeID);
+        int meta = getRotatedMetadata(blockID, (cell.length > 1 ? cell[1] : 0), rotations);
+
+        for (int z = start; z < start + length; ++z) {
+            int worldX = posX + StructureRotation.getRotatedX(x, z, rotations);
+            int worldZ = posZ + StructureRotation.getRotatedZ(x, z, rotations);
+            world.setBlock(worldX, posY + y, worldZ, blockID, meta, 2);
+            if (isHook && hooks != null) {
+                hooks.add(new int[] {worldX, posY + y, worldZ, fakeID, customData1, (cell.length > 3 ? cell[3] : 0)});
+            }
+        }
+    }
+}
+/*
+generateCompact's loop then shrinks down to this:
+*/
+for (int y = 0; y < blocks.length; ++y) {
+    for (int x = 0; x < blocks[y].length; ++x) {
+        placeRow(world, blocks[y][x], StructureCompiler.getRuns(blocks[y][x]), y, x, rotations, posX, posY, posZ, hooks);
+    }
+}
+/*
+And here's the StructureFile version. We decode one row at a time into the same reusable
+array, so the structure is never fully decoded in memory. Since the palette hands back the same
+array for identical cells, finding runs works exactly as it does for interned rows.
+
+The hooks come straight from the file's hook table, so the second pass doesn't need to collect
+anything or search through the structure.
+*/
+/**
+ * Generates the structure file with its lowest, x = 0, z = 0 corner at x/y/z, turned the given
+ * number of clockwise quarter turns; cells are decoded from the file as they are placed
+ */
+public void generateFromFile(World world, StructureFile file, int rotations, int posX, int posY, int posZ)
+{
+    int[][] row = new int[file.getSizeZ()][];
+    for (int y = 0; y < file.getSizeY(); ++y) {
+        for (int x = 0; x < file.getSizeX(); ++x) {
+            file.getRow(y, x, row);
+            placeRow(world, row, StructureCompiler.getRuns(row), y, x, rotations, posX, posY, posZ, null);
+        }
+    }
+
+    for (int position : file.getHooks()) {
+        int[] pos = file.getPosition(position);
+        int[] cell = file.getCell(pos[0], pos[1], pos[2]);
+        int worldX = posX + StructureRotation.getRotatedX(pos[1], pos[2], rotations);
+        int worldZ = posZ + StructureRotation.getRotatedZ(pos[1], pos[2], rotations);
+        onCustomBlockAdded(world, worldX, posY + pos[0], worldZ, cell[0], (cell.length > 2 ? cell[2] : 0), (cell.length > 3 ? cell[3] : 0));
+    }
+}
+/*
+Load your structure files once, for example in FMLPreInitializationEvent, and keep them around
+just like we kept our List of Structures:
+*/
+public static final Map<String, StructureFile> structureFiles = new HashMap<String, StructureFile>();
+
+// in preInit:
+for (String name : new String[] {"tutorial_home_1", "tutorial_home_2"}) {
+    try {
+        structureFiles.put(name, StructureFile.load(name, event.getModConfigurationDirectory()));
+    } catch (IOException e) {
+        System.out.println("[STRUCTURE] Unable to load structure " + name + ": " + e.getMessage());
+    }
+}
+/*
+If you'd still like to generate a file structure with StructureGeneratorBase, for example to
+use the structure's offsets and the hammer, it's easy to turn it back into a block array to add
+to a Structure. You lose the savings of lazy decoding, of course, but you still skip the huge
+static initializer:
+*/
+public static int[][][][] toBlockArray(StructureFile file)
+{
+    int[][][][] blocks = new int[file.getSizeY()][file.getSizeX()][file.getSizeZ()][];
+    for (int y = 0; y < file.getSizeY(); ++y) {
+        for (int x = 0; x < file.getSizeX(); ++x) {
+            file.getRow(y, x, blocks[y][x]);
+        }
+    }
+    // Interning shares the rows and layers, too
+    return StructureCompiler.intern(blocks);
+}
+
+structure = new Structure("Tutorial Home 1");
+structure.addBlockArray(toBlockArray(structureFiles.get("tutorial_home_1")));
+structure.setFacing(StructureGeneratorBase.WEST);
+structures.add(structure);
+/**
+ * Step 7: Importing schematics
+ */
+/*
+Writing block arrays by hand is fine for a little house, but for anything big your builders will
+want to use a real editor like MCEdit and export a '.schematic' file. Let's turn those into our
+structure files.
+
+A schematic is a gzipped NBT file, with a few entries we care about:
+
+    Width, Height, Length   the size in x, y and z (shorts)
+    Blocks                  one byte per block id, in y, z, x order
+    Data                    one byte per metadata value, same order
+    AddBlocks               optional; extra 4 bits for each block id above 255, two per byte
+
+The easy way to read one is CompressedStreamTools.readCompressed, which gives you the whole
+thing as an NBTTagCompound. The problem is size: a 256 x 256 x 128 schematic has over 8 million
+blocks, so Blocks and Data alone are 16MB, plus whatever the NBT classes need on top of that.
+Import a few of those on a server with a small heap and you're in trouble.
+
+So instead, we never load the arrays at all:
+
+1. Unzip the file into a temporary file, 64KB at a time.
+2. Memory-map the temporary file and walk through the NBT just far enough to find out where
+   Blocks, Data and AddBlocks start. Everything else is skipped over without being read.
+3. Go through every block once to build the palette. A block and its metadata fit into 16 bits,
+   so a lookup table with 65536 entries (256KB) is all it takes, however big the schematic is.
+4. Go through every block again and write the packed palette indices straight out to a
+   structure file, a few bytes at a time.
+5. Load that structure file, memory-mapped, as usual.
+
+The heap needed stays the same no matter how big the schematic is; only the hook table grows,
+and only with the number of custom hooks in it.
+
+Along the way, every block id goes through a remap table. Block ids in the schematic are
+whatever they were in the world it was built in, which might not match yours, and remapping is
+also a handy way to turn things into custom hooks: map the chest's block id to CUSTOM_CHEST and
+every chest in the schematic gets filled by onCustomBlockAdded.
+*/
+public class SchematicImporter
+{
+    /** Block id remapping; ids not in the map are kept as they are */
+    private final Map<Integer, Integer> remap = new HashMap<Integer, Integer>();
+
+    /** If true, air in the schematic becomes an empty cell {}, leaving the world alone */
+    private boolean airIsEmpty;
+
+    /** Maps block id 'from' in the schematic to block id or custom hook id 'to' */
+    public SchematicImporter setRemap(int from, int to)
+    {
+        remap.put(from, to);
+        return this;
+    }
+
+    public SchematicImporter setAirIsEmpty(boolean airIsEmpty)
+    {
+        this.airIsEmpty = airIsEmpty;
+        return this;
+    }
+
+    /**
+     * Reads remappings from a text file with one 'from=to' per line; lines starting with '#'
+     * are comments. For example: '54=4096' turns every chest into our CUSTOM_CHEST.
+     */
+    public SchematicImporter loadRemap(File file) throws IOException
+    {
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                String[] parts = line.split("=");
+                try {
+                    setRemap(Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim()));
+                } catch (RuntimeException e) {
+                    System.out.println("[STRUCTURE] Ignoring invalid remap line in " + file.getName() + ": " + line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return this;
+    }
+
+    /**
+     * Imports the schematic, writes it to 'output' in our structure file format, and loads it
+     */
+    public StructureFile importSchematic(File schematic, File output) throws IOException
+    {
+        File temp = File.createTempFile("schematic", ".nbt");
+        try {
+            // 1. Unzip to a temporary file
+            InputStream in = new GZIPInputStream(new BufferedInputStream(new FileInputStream(schematic)));
+            OutputStream out = new FileOutputStream(temp);
+            try {
+                byte[] buffer = new byte[65536];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                in.close();
+                out.close();
+            }
+
+            // 2. Map it and find what we need
+            RandomAccessFile raf = new RandomAccessFile(temp, "r");
+            MappedByteBuffer nbt;
+            try {
+                nbt = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            } finally {
+                raf.close();
+            }
+            Layout layout = new Layout();
+            if (nbt.get() != 10) {
+                throw new IOException("Not a schematic file");
+            }
+            skipString(nbt);
+            layout.read(nbt);
+            if (layout.blocks < 0 || layout.data < 0 || layout.width < 1 || layout.height < 1 || layout.length < 1) {
+                throw new IOException("Schematic is missing its size or blocks");
+            }
+            write(nbt, layout, output);
+        } finally {
+            // Java can't unmap a file itself; the mapping goes away when 'nbt' is garbage collected.
+            // Until then, Windows refuses to delete the file, so have it deleted when we exit instead.
+            if (!temp.delete()) {
+                temp.deleteOnExit();
+            }
+        }
+        return StructureFile.load(output);
+    }
+
+    /**
+     * Sizes and positions of the arrays within the unzipped file
+     */
+    private static final class Layout
+    {
+        private int width, height, length;
+        private int blocks = -1, data = -1, addBlocks = -1;
+
+        /** Reads the entries of the root compound, skipping everything we don't need */
+        private void read(ByteBuffer nbt) throws IOException {
+            byte type;
+            while ((type = nbt.get()) != 0) {
+                String name = readString(nbt);
+                if (type == 2 && name.equals("Width")) {
+                    width = nbt.getShort() & 0xFFFF;
+                } else if (type == 2 && name.equals("Height")) {
+                    height = nbt.getShort() & 0xFFFF;
+                } else if (type == 2 && name.equals("Length")) {
+                    length = nbt.getShort() & 0xFFFF;
+                } else if (type == 7 && (name.equals("Blocks") || name.equals("Data") || name.equals("AddBlocks"))) {
+                    int size = nbt.getInt();
+                    if (name.equals("Blocks")) {
+                        blocks = nbt.position();
+                    } else if (name.equals("Data")) {
+                        data = nbt.position();
+                    } else {
+                        addBlocks = nbt.position();
+                    }
+                    nbt.position(nbt.position() + size);
+                } else {
+                    skipTag(nbt, type);
+                }
+            }
+        }
+
+        /** Index of the block at x/y/z in the schematic's arrays */
+        private int getIndex(int x, int y, int z) {
+            return (y * length + z) * width + x;
+        }
+    }
+
+    /**
+     * Returns the block id and metadata of a schematic block as (id << 4 | metadata)
+     */
+    private static int getState(ByteBuffer nbt, Layout layout, int index)
+    {
+        int id = nbt.get(layout.blocks + index) & 0xFF;
+        if (layout.addBlocks >= 0) {
+            int add = nbt.get(layout.addBlocks + (index >> 1)) & 0xFF;
+            // Even indices use the high 4 bits, odd indices the low 4 bits
+            id |= ((index & 1) == 0 ? (add >> 4) : (add & 0xF)) << 8;
+        }
+        return id << 4 | (nbt.get(layout.data + index) & 0xF);
+    }
+
+    private void write(ByteBuffer nbt, Layout layout, File output) throws IOException
+    {
+        int sizeX = layout.width, sizeY = layout.height, sizeZ = layout.length;
+
+        // 3. Build the palette: palette index for every block state seen, or -1
+        int[] paletteIndex = new int[65536];
+        Arrays.fill(paletteIndex, -1);
+        List<int[]> palette = new ArrayList<int[]>();
+        for (int y = 0; y < sizeY; ++y) {
+            for (int x = 0; x < sizeX; ++x) {
+                for (int z = 0; z < sizeZ; ++z) {
+                    int state = getState(nbt, layout, layout.getIndex(x, y, z));
+                    if (paletteIndex[state] < 0) {
+                        paletteIndex[state] = palette.size();
+                        palette.add(getCell(state));
+                    }
+                }
+            }
+        }
+        int bits = 1;
+        while ((1 << bits) < palette.size()) {
+            ++bits;
+        }
+
+        // 4. Write the structure file, in our y, x, z order
+        output.getParentFile().mkdirs();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(output)));
+        try {
+            out.writeInt(StructureFile.MAGIC);
+            out.writeShort(sizeY);
+            out.writeShort(sizeX);
+            out.writeShort(sizeZ);
+            out.writeInt(palette.size());
+            for (int[] cell : palette) {
+                out.writeByte(cell.length);
+                for (int value : cell) {
+                    out.writeInt(value);
+                }
+            }
+            out.writeByte(bits);
+
+            // Bits go out lowest first, exactly as StructureFile reads them back
+            List<Integer> hooks = new ArrayList<Integer>();
+            long bitBuffer = 0;
+            int bitCount = 0;
+            int position = 0;
+            for (int y = 0; y < sizeY; ++y) {
+                for (int x = 0; x < sizeX; ++x) {
+                    for (int z = 0; z < sizeZ; ++z, ++position) {
+                        int index = paletteIndex[getState(nbt, layout, layout.getIndex(x, y, z))];
+                        int[] cell = palette.get(index);
+                        if (cell.length > 0 && cell[0] >= 4096) {
+                            hooks.add(position);
+                        }
+                        bitBuffer |= (long) index << bitCount;
+                        bitCount += bits;
+                        while (bitCount >= 8) {
+                            out.writeByte((int) bitBuffer);
+                            bitBuffer >>>= 8;
+                            bitCount -= 8;
+                        }
+                    }
+                }
+            }
+            if (bitCount > 0) {
+                out.writeByte((int) bitBuffer);
+            }
+            // The two bytes of padding StructureFile expects
+            out.writeShort(0);
+            out.writeInt(hooks.size());
+            for (int hook : hooks) {
+                out.writeInt(hook);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Turns a schematic block state into a cell, remapping the block id
+     */
+    private int[] getCell(int state)
+    {
+        int id = state >> 4, meta = state & 0xF;
+        Integer mapped = remap.get(id);
+        if (mapped != null) {
+            id = mapped;
+        }
+        if (id == 0 && airIsEmpty) {
+            return new int[0];
+        }
+        return (meta == 0 ? new int[] {id} : new int[] {id, meta});
+    }
+
+    private static String readString(ByteBuffer nbt)
+    {
+        byte[] bytes = new byte[nbt.getShort() & 0xFFFF];
+        nbt.get(bytes);
+        try {
+            return new String(bytes, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void skipString(ByteBuffer nbt)
+    {
+        nbt.position(nbt.position() + (nbt.getShort() & 0xFFFF));
+    }
+
+    /**
+     * Skips over the payload of an NBT tag of the given type without reading it
+     */
+    private static void skipTag(ByteBuffer nbt, byte type) throws IOException
+    {
+        switch(type) {
+        case 1: nbt.position(nbt.position() + 1); break;
+        case 2: nbt.position(nbt.position() + 2); break;
+        case 3: case 5: nbt.position(nbt.position() + 4); break;
+        case 4: case 6: nbt.position(nbt.position() + 8); break;
+        case 7: nbt.position(nbt.position() + nbt.getInt()); break;
+        case 8: skipString(nbt); break;
+        case 9:
+            byte listType = nbt.get();
+            int size = nbt.getInt();
+            for (int i = 0; i < size; ++i) {
+                skipTag(nbt, listType);
+            }
+            break;
+        case 10:
+            byte child;
+            while ((child = nbt.get()) != 0) {
+                skipString(nbt);
+                skipTag(nbt, child);
+            }
+            break;
+        case 11: nbt.position(nbt.position() + 4 * nbt.getInt()); break;
+        default: throw new IOException("Unknown NBT tag type " + type);
+        }
+    }
+}
+/*
+importSchematic ends by loading the file it just wrote, which needs a small addition to
+StructureFile: a load method that takes the File directly. Just move the memory-mapping part
+of load(String, File) into its own method:
+*/
+/**
+ * Loads a structure file, memory-mapped
+ */
+public static StructureFile load(File file) throws IOException
+{
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+        FileChannel channel = raf.getChannel();
+        return new StructureFile(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    } finally {
+        raf.close();
+    }
+}
+/*
+Using it looks like this. Put your schematics and a remap file in the config directory, and
+import them once; after that, you can simply load the structure file like any other.
+*/
+File structureDir = new File(event.getModConfigurationDirectory(), "structures");
+SchematicImporter importer = new SchematicImporter()
+    .setRemap(Block.chest.blockID, CustomHooks.CUSTOM_CHEST)
+    .setAirIsEmpty(true);
+File remapFile = new File(structureDir, "remap.txt");
+if (remapFile.exists()) {
+    importer.loadRemap(remapFile);
+}
+try {
+    StructureFile castle = importer.importSchematic(new File(structureDir, "castle.schematic"), new File(structureDir, "castle.sgt"));
+    structureFiles.put("castle", castle);
+} catch (IOException e) {
+    System.out.println("[STRUCTURE] Unable to import castle.schematic: " + e.getMessage());
+}
+/*
+Want proof that it really doesn't need much memory? Comparing the heap before and after isn't
+good enough, since the garbage collector may well run in the middle and hide everything. What we
+want is the PEAK: the most heap that was in use at any time during the import. Java keeps track
+of that for each memory pool, and we can reset it right before we start.
+
+This method imports the schematic both ways, our importer and CompressedStreamTools, and prints
+the peak heap growth and time for each. Run it with a big schematic, ideally with a small heap
+like -Xmx256M, where the difference is hardest to miss:
+*/
+public static void measureImport(SchematicImporter importer, File schematic, File output) throws IOException
+{
+    long start = System.nanoTime();
+    long base = resetPeakHeap();
+    StructureFile imported = importer.importSchematic(schematic, output);
+    System.out.println("[STRUCTURE] Importer: " + imported.getSizeX() + "x" + imported.getSizeY() + "x" + imported.getSizeZ()
+            + " in " + (System.nanoTime() - start) / 1000000 + "ms, peak heap +" + (getPeakHeap() - base) / 1024 + "KB");
+
+    start = System.nanoTime();
+    base = resetPeakHeap();
+    NBTTagCompound compound = CompressedStreamTools.readCompressed(new FileInputStream(schematic));
+    System.out.println("[STRUCTURE] CompressedStreamTools: " + compound.getByteArray("Blocks").length + " blocks in "
+            + (System.nanoTime() - start) / 1000000 + "ms, peak heap +" + (getPeakHeap() - base) / 1024 + "KB");
+}
+
+/** Collects garbage, resets every heap pool's peak, and returns the heap in use now */
+private static long resetPeakHeap()
+{
+    System.gc();
+    long used = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+        if (pool.getType() == MemoryType.HEAP) {
+            pool.resetPeakUsage();
+            used += pool.getUsage().getUsed();
+        }
+    }
+    return used;
+}
+
+/** Returns the sum of every heap pool's peak since the last reset */
+private static long getPeakHeap()
+{
+    long peak = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+        if (pool.getType() == MemoryType.HEAP) {
+            peak += pool.getPeakUsage().getUsed();
+        }
+    }
+    return peak;
+}
+/*
+The sum of the pools' peaks is a little more than the real peak, since the pools don't all peak
+at the same moment, but it's never less, which is what matters here. With a 256 x 256 x 128
+schematic, CompressedStreamTools needs at least the 16MB for its two arrays, while the importer
+should only show its 256KB lookup table, a few small buffers, and the hook list.
+*/
+/**
+ * Step 8: Mirrored and rotated variants
+ */
+/*
+Look at blockArrayTutorial1 and blockArrayTutorial2 again: two complete copies of a house, just
+so one chest can have different contents. Interning already shares all the identical rows, but
+that only works when the copies line up cell for cell. A house with its door on the left and
+a mirror image of it with the door on the right don't share a single row, even though one is
+just the other one flipped over.
+
+So instead of storing a variant as another block array, let's store HOW to make it from the
+base: flip it front to back (mirror z) and/or left to right (mirror x), turn it a number of
+quarter turns, and then change a few cells. The variant never builds a block array of its own;
+it works out each cell from the base on the fly, as the structure is placed.
+
+Two tricks keep this simple:
+
+1. Mirroring left to right is the same as mirroring front to back and then turning the structure
+   around twice. So internally there is only ever one kind of mirror, and we only need one new
+   metadata function: getMirroredMetadata, for flipping a block front to back.
+
+2. Flipping and turning the metadata is done ONCE per distinct cell of the base, not once per
+   block. Because the base is interned, that's usually only a handful of cells, and the flipped
+   copies are just as shared as the originals, so runs still work for placing.
+
+Changed cells are given in the variant's own coordinates, after flipping and turning, facing
+the same way as the base structure's default facing. That way you can find them by looking at
+the generated variant in the world, and their metadata is written exactly like the base's.
+*/
+public class StructureVariant
+{
+    /** Used for cells outside of the base's (possibly ragged) rows: leave the world alone */
+    private static final int[] EMPTY = new int[0];
+
+    private final int[][][][] base;
+    private final boolean mirror;
+    private final int rotations;
+
+    /** Size of the base, and of the variant after turning */
+    private final int baseSizeX, baseSizeZ, sizeY, sizeX, sizeZ;
+
+    /** Flipped and turned copy of each distinct cell in the base */
+    private final Map<int[], int[]> transformed = new IdentityHashMap<int[], int[]>();
+
+    /** Changed cells by row (y * sizeX + x); cells that aren't changed are null */
+    private final Map<Integer, int[][]> overrides = new HashMap<Integer, int[][]>();
+
+    /**
+     * Makes a variant of the base block array: first mirrored as requested, then turned the given
+     * number of clockwise quarter turns. The generator is only used right now, to work out the
+     * flipped and turned metadata.
+     */
+    public StructureVariant(MyStructureGenerator gen, int[][][][] base, boolean mirrorX, boolean mirrorZ, int rotations)
+    {
+        this.base = base;
+        // Left to right is front to back plus half a turn
+        this.mirror = (mirrorX != mirrorZ);
+        this.rotations = ((mirrorX ? rotations + 2 : rotations) % 4 + 4) % 4;
+
+        int maxX = 0, maxZ = 0;
+        for (int[][][] layer : base) {
+            maxX = Math.max(maxX, layer.length);
+            for (int[][] row : layer) {
+                maxZ = Math.max(maxZ, row.length);
+                for (int[] cell : row) {
+                    if (!transformed.containsKey(cell)) {
+                        transformed.put(cell, transform(gen, cell));
+                    }
+                }
+            }
+        }
+        this.baseSizeX = maxX;
+        this.baseSizeZ = maxZ;
+        this.sizeY = base.length;
+        this.sizeX = (this.rotations % 2 == 0 ? maxX : maxZ);
+        this.sizeZ = (this.rotations % 2 == 0 ? maxZ : maxX);
+    }
+
+    /**
+     * Returns a copy of the cell with its metadata flipped and turned like the rest of the variant
+     */
+    private int[] transform(MyStructureGenerator gen, int[] cell)
+    {
+        // Empty cells have nothing to turn
+        if (cell.length == 0) {
+            return cell;
+        }
+        // Cells like {Block.torchWood.blockID} have metadata 0, and still need turning
+        int oldMeta = (cell.length > 1 ? cell[1] : 0);
+        int blockID = (cell[0] >= 4096 ? gen.getRealBlockID(cell[0], (cell.length > 2 ? cell[2] : 0)) : cell[0]);
+        int meta = (mirror ? gen.getMirroredMetadata(blockID, oldMeta) : oldMeta);
+        meta = gen.getRotatedMetadata(blockID, meta, rotations);
+        if (meta == oldMeta) {
+            return cell;
+        }
+        int[] copy = Arrays.copyOf(cell, Math.max(cell.length, 2));
+        copy[1] = meta;
+        return copy;
+    }
+
+    /**
+     * Changes the cell at y/x/z, in the variant's coordinates; use {} to leave the world alone
+     * there, or {0} to clear it. Returns the variant so you can chain calls.
+     */
+    public StructureVariant override(int y, int x, int z, int[] cell)
+    {
+        if (y < 0 || y >= sizeY || x < 0 || x >= sizeX || z < 0 || z >= sizeZ) {
+            throw new IllegalArgumentException("Cell " + x + "/" + y + "/" + z + " is outside of the structure");
+        }
+        int[][] row = overrides.get(y * sizeX + x);
+        if (row == null) {
+            overrides.put(y * sizeX + x, row = new int[sizeZ][]);
+        }
+        row[z] = cell;
+        return this;
+    }
+
+    public int getSizeY() { return sizeY; }
+    public int getSizeX() { return sizeX; }
+    public int getSizeZ() { return sizeZ; }
+
+    /**
+     * Fills 'row' (at least getSizeZ() long) with the variant's cells at y/x. Unchanged cells are
+     * shared just like in an interned array, so runs work as usual.
+     */
+    public void getRow(int y, int x, int[][] row)
+    {
+        int[][] changed = overrides.get(y * sizeX + x);
+        for (int z = 0; z < sizeZ; ++z) {
+            if (changed != null && changed[z] != null) {
+                row[z] = changed[z];
+                continue;
+            }
+            // Undo the turn, then the mirror, to find the cell in the base
+            int baseX, baseZ;
+            switch(rotations) {
+            case 1: baseX = z; baseZ = baseSizeZ - 1 - x; break;
+            case 2: baseX = baseSizeX - 1 - x; baseZ = baseSizeZ - 1 - z; break;
+            case 3: baseX = baseSizeX - 1 - z; baseZ = x; break;
+            default: baseX = x; baseZ = z;
+            }
+            if (mirror) {
+                baseZ = baseSizeZ - 1 - baseZ;
+            }
+            int[][][] layer = base[y];
+            row[z] = (baseX < layer.length && baseZ < layer[baseX].length ? transformed.get(layer[baseX][baseZ]) : EMPTY);
+        }
+    }
+
+    /**
+     * Builds the variant as an ordinary block array, for adding to a Structure
+     */
+    public int[][][][] toBlockArray()
+    {
+        int[][][][] blocks = new int[sizeY][sizeX][sizeZ][];
+        for (int y = 0; y < sizeY; ++y) {
+            for (int x = 0; x < sizeX; ++x) {
+                getRow(y, x, blocks[y][x]);
+            }
+        }
+        return StructureCompiler.intern(blocks);
+    }
+}
+/*
+Placing a variant works just like generateFromFile: decode a row at a time into one reusable
+array and hand it to placeRow. Add this to MyStructureGenerator:
+*/
+/**
+ * Generates the variant with its lowest, x = 0, z = 0 corner at x/y/z, turned the given number
+ * of clockwise quarter turns
+ */
+public void generateVariant(World world, StructureVariant variant, int rotations, int posX, int posY, int posZ)
+{
+    List<int[]> hooks = new ArrayList<int[]>();
+    int[][] row = new int[variant.getSizeZ()][];
+    for (int y = 0; y < variant.getSizeY(); ++y) {
+        for (int x = 0; x < variant.getSizeX(); ++x) {
+            variant.getRow(y, x, row);
+            placeRow(world, row, StructureCompiler.getRuns(row), y, x, rotations, posX, posY, posZ, hooks);
+        }
+    }
+    for (int[] hook : hooks) {
+        onCustomBlockAdded(world, hook[0], hook[1], hook[2], hook[3], hook[4], hook[5]);
+    }
+}
+
+/**
+ * Returns the metadata for the block after flipping the structure front to back, so that
+ * north becomes south and south becomes north; east and west stay the same
+ */
+public int getMirroredMetadata(int blockID, int meta)
+{
+    BlockRotationData.Rotation type = BlockRotationData.getBlockRotationType(blockID);
+    if (type == null) {
+        return meta;
+    }
+    int extra;
+    switch(type) {
+    case ANVIL:
+    case GENERIC:
+    case REPEATER:
+        // 0 south, 1 west, 2 north, 3 east
+        return ((meta & 1) == 0 ? meta ^ 2 : meta);
+    case DOOR:
+        // The bottom half faces 0 east, 1 south, 2 west, 3 north; the top half has the hinge in
+        // its lowest bit, and a mirrored door has its hinge on the other side
+        if ((meta & 8) != 0) {
+            return meta ^ 1;
+        }
+        return ((meta & 1) != 0 ? meta ^ 2 : meta);
+    case SIGNPOST:
+        // 0 is south and 8 is north; west (4) and east (12) stay put
+        return (8 - meta) & 15;
+    case SKULL:
+    case PISTON_CONTAINER:
+        // 2 north, 3 south
+        extra = meta & 8;
+        return ((meta & 7) == 2 ? 3 | extra : (meta & 7) == 3 ? 2 | extra : meta);
+    case STAIRS:
+        // 2 south, 3 north
+        return ((meta & 2) != 0 ? meta ^ 1 : meta);
+    case TRAPDOOR:
+        // 0 south, 1 north
+        return ((meta & 2) == 0 ? meta ^ 1 : meta);
+    case VINE:
+        // Swap the south (1) and north (4) bits
+        return (meta & 10) | ((meta & 1) << 2) | ((meta & 4) >> 2);
+    case WALL_MOUNTED:
+        // 3 south, 4 north; floor and ceiling levers lie along the same line either way
+        extra = meta & 8;
+        return ((meta & 7) == 3 ? 4 | extra : (meta & 7) == 4 ? 3 | extra : meta);
+    case RAIL:
+        // Slopes up to the north (4) and south (5) swap, and so do the curves:
+        // south-east (6) with north-east (9), and south-west (7) with north-west (8)
+        extra = (blockID == Block.rail.blockID ? 0 : meta & 8);
+        switch(meta & ~extra) {
+        case 4: return 5 | extra;
+        case 5: return 4 | extra;
+        case 6: return 9;
+        case 9: return 6;
+        case 7: return 8;
+        case 8: return 7;
+        default: return meta;
+        }
+    default:
+        // Quartz pillars and logs lie along the same line after flipping
+        return meta;
+    }
+}
+/*
+getMirroredMetadata has the same shape as getRotatedMetadata, with one case per
+BlockRotationData.Rotation type. For most of them, flipping just swaps the north and south
+values and leaves the rest alone. Watch out for doors, though: flipping a door also swaps the
+side its hinge is on, and that lives in the top half's metadata.
+
+Now, instead of a second copy of the whole house, declare the variants in your main mod class,
+right after 'gen':
+*/
+// The same house with the other chest; the position is where the chest is in YOUR array
+public static final StructureVariant tutorialHome2 = new StructureVariant(gen, StructureArrayTutorial.blockArrayTutorial1, false, false, 0)
+    .override(0, 3, 1, new int[] {CustomHooks.CUSTOM_CHEST, 2, CustomHooks.CHEST_HOUSE_2});
+
+// A mirror image of the first house, for the other side of the street
+public static final StructureVariant tutorialHome1Mirrored = new StructureVariant(gen, StructureArrayTutorial.blockArrayTutorial1, false, true, 0);
+/*
+and delete blockArrayTutorial2 altogether. Generating one is exactly like generateCompact:
+*/
+int rotations = StructureRotation.getRotations(StructureGeneratorBase.WEST, StructureRotation.getFacingToward(player));
+YourMod.gen.generateVariant(world, YourMod.tutorialHome2, rotations, x, y + 1, z);
+/*
+A whole family of variants now costs the base array, a few transformed cells, and one short row
+for each row that has a changed cell. For a big castle with a mirrored twin and a ruined
+version, that's the difference between three castles in memory and one.
+
+The hammer still needs a real block array for its Structure list, so if you want a variant
+there, use toBlockArray; just like toBlockArray for structure files, you give up the savings for
+that one variant, but interning shares everything it can with the base:
+*/
+structure = new Structure("Tutorial Home 2");
+structure.addBlockArray(YourMod.tutorialHome2.toBlockArray());
+structure.setFacing(StructureGeneratorBase.WEST);
+structures.add(structure);
@@ -0,0 +1,664 @@
+/*
+STRUCTURE GENERATOR TOOL TUTORIAL PART 6: AFTER GENERATION
+
+Once a structure is generated, the tool forgets all about it. Most of the time that's fine, but
+sooner or later you'll want to know things like "is this block part of a building?" for a
+protected area, a quest trigger, or a mob that only spawns in your dungeons. Looking at the
+blocks to figure that out is slow and unreliable, since players can build with the same blocks.
+
+In this part we'll keep track of the structures we generate, and do a few useful things with
+that information.
+
+This part uses StructurePlacer and StructureRotation from Parts 4 and 5.
+*/
+/**
+ * Step 1: Remembering where structures were placed
+ */
+/*
+For every structure we generate, we'll store its name, the direction it faces, and its
+'bounding box': the smallest box that contains the whole structure.
+
+To find structures quickly, we also file each structure under every chunk its box touches.
+Asking "what's at x/y/z?" then only means looking at the few structures filed under that one
+chunk, no matter how many thousands of structures there are in the world. Asking about a
+region just looks at each chunk the region touches.
+
+All of this is saved with the world using WorldSavedData, the same way vanilla keeps track of
+villages. We use the World's 'perWorldStorage', so each dimension gets its own index.
+*/
+public class StructureIndex extends WorldSavedData
+{
+    public static final String DATA_NAME = "YourModStructures";
+
+    /** Every structure in this dimension, in the order they were generated */
+    private final List<Entry> entries = new ArrayList<Entry>();
+
+    /** The same structures, filed under every chunk they touch */
+    private final Map<Long, List<Entry>> chunks = new HashMap<Long, List<Entry>>();
+
+    /** WorldSavedData needs this constructor to be able to load the data */
+    public StructureIndex(String name)
+    {
+        super(name);
+    }
+
+    /**
+     * Returns the structure index for the world's dimension, creating it if needed
+     */
+    public static StructureIndex get(World world)
+    {
+        StructureIndex index = (StructureIndex) world.perWorldStorage.loadData(StructureIndex.class, DATA_NAME);
+        if (index == null) {
+            index = new StructureIndex(DATA_NAME);
+            world.perWorldStorage.setData(DATA_NAME, index);
+        }
+        return index;
+    }
+
+    /**
+     * Adds a structure to the index. The box is worked out from the size of the block array
+     * and how it was placed, just like StructurePlacer places it.
+     */
+    public void add(String name, int facing, int[][][][] blocks, int rotations, int posX, int posY, int posZ)
+    {
+        int sizeX = 0, sizeZ = 0;
+        for (int[][][] layer : blocks) {
+            sizeX = Math.max(sizeX, layer.length);
+            for (int[][] row : layer) {
+                sizeZ = Math.max(sizeZ, row.length);
+            }
+        }
+        // Rotating the far corner tells us which way the structure stretches from x/z
+        int farX = posX + StructureRotation.getRotatedX(sizeX - 1, sizeZ - 1, rotations);
+        int farZ = posZ + StructureRotation.getRotatedZ(sizeX - 1, sizeZ - 1, rotations);
+        add(new Entry(name, facing, Math.min(posX, farX), posY, Math.min(posZ, farZ),
+                Math.max(posX, farX), posY + blocks.length - 1, Math.max(posZ, farZ)));
+        markDirty();
+    }
+
+    private void add(Entry entry)
+    {
+        entries.add(entry);
+        for (int cx = entry.minX >> 4; cx <= entry.maxX >> 4; ++cx) {
+            for (int cz = entry.minZ >> 4; cz <= entry.maxZ >> 4; ++cz) {
+                long key = getChunkKey(cx, cz);
+                List<Entry> list = chunks.get(key);
+                if (list == null) {
+                    list = new ArrayList<Entry>(2);
+                    chunks.put(key, list);
+                }
+                list.add(entry);
+            }
+        }
+    }
+
+    /**
+     * Returns the structure containing x/y/z, or null if there isn't one. If structures
+     * overlap, the one generated last is returned.
+     */
+    public Entry getStructureAt(int x, int y, int z)
+    {
+        List<Entry> list = chunks.get(getChunkKey(x >> 4, z >> 4));
+        if (list != null) {
+            for (int i = list.size() - 1; i >= 0; --i) {
+                if (list.get(i).contains(x, y, z)) {
+                    return list.get(i);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns every structure whose box overlaps the region between the two corners given
+     */
+    public List<Entry> getStructuresIn(int minX, int minY, int minZ, int maxX, int maxY, int maxZ)
+    {
+        // A structure can touch several chunks of the region, but should only be returned once
+        Set<Entry> found = new LinkedHashSet<Entry>();
+        for (int cx = minX >> 4; cx <= maxX >> 4; ++cx) {
+            for (int cz = minZ >> 4; cz <= maxZ >> 4; ++cz) {
+                List<Entry> list = chunks.get(getChunkKey(cx, cz));
+                if (list == null) {
+                    continue;
+                }
+                for (Entry entry : list) {
+                    if (entry.intersects(minX, minY, minZ, maxX, maxY, maxZ)) {
+                        found.add(entry);
+                    }
+                }
+            }
+        }
+        return new ArrayList<Entry>(found);
+    }
+
+    private static long getChunkKey(int chunkX, int chunkZ)
+    {
+        return ((long) chunkX << 32) | (chunkZ & 0xFFFFFFFFL);
+    }
+
+    @Override
+    public void readFromNBT(NBTTagCompound compound)
+    {
+        entries.clear();
+        chunks.clear();
+        NBTTagList list = compound.getTagList("Structures");
+        for (int i = 0; i < list.tagCount(); ++i) {
+            NBTTagCompound tag = (NBTTagCompound) list.tagAt(i);
+            int[] box = tag.getIntArray("Box");
+            add(new Entry(tag.getString("Name"), tag.getByte("Facing"), box[0], box[1], box[2], box[3], box[4], box[5]));
+        }
+    }
+
+    @Override
+    public void writeToNBT(NBTTagCompound compound)
+    {
+        NBTTagList list = new NBTTagList();
+        for (Entry entry : entries) {
+            NBTTagCompound tag = new NBTTagCompound();
+            tag.setString("Name", entry.name);
+            tag.setByte("Facing", (byte) entry.facing);
+            tag.setIntArray("Box", new int[] {entry.minX, entry.minY, entry.minZ, entry.maxX, entry.maxY, entry.maxZ});
+            list.appendTag(tag);
+        }
+        compound.setTag("Structures", list);
+    }
+
+    /**
+     * One generated structure: its name, which way it faces, and its bounding box
+     */
+    public static final class Entry
+    {
+        public final String name;
+        public final int facing;
+        public final int minX, minY, minZ, maxX, maxY, maxZ;
+
+        private Entry(String name, int facing, int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+            this.name = name;
+            this.facing = facing;
+            this.minX = minX;
+            this.minY = minY;
+            this.minZ = minZ;
+            this.maxX = maxX;
+            this.maxY = maxY;
+            this.maxZ = maxZ;
+        }
+
+        public boolean contains(int x, int y, int z) {
+            return x >= minX && x <= maxX && y >= minY && y <= maxY && z >= minZ && z <= maxZ;
+        }
+
+        public boolean intersects(int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+            return this.minX <= maxX && this.maxX >= minX && this.minY <= maxY && this.maxY >= minY && this.minZ <= maxZ && this.maxZ >= minZ;
+        }
+    }
+}
+/*
+Keep in mind that the box is just that, a box. For an L-shaped building, the empty corner is
+inside the box too. For things like protected areas that's usually exactly what you want anyway.
+*/
+/**
+ * Step 2: Adding structures to the index automatically
+ */
+/*
+We don't want to have to remember to add every structure ourselves, so let StructurePlacer do
+it when a structure is finished. It needs to know the structure's name and facing for that, so
+give submit a couple more parameters, and keep them in the Placement along with the block array,
+rotations and position we added in Part 5:
+*/
+/**
+ * Starts building a plan for the block array on a worker thread. The structure, which by default
+ * faces 'structureFacing', will be turned to face 'facing' and added to the StructureIndex
+ * under 'name' once it's placed (unless name is null).
+ */
+public static void submit(World world, MyStructureGenerator gen, String name, int[][][][] blocks, int structureFacing, int facing, int x, int y, int z)
+
+// ...and in tick(), right after the custom hooks are handled:
+if (placement.name != null) {
+    StructureIndex.get(placement.world).add(placement.name, placement.facing, placement.blocks, placement.rotations, placement.x, placement.y, placement.z);
+}
+/*
+Our hammer code from Part 5 becomes:
+*/
+StructurePlacer.submit(world, YourMod.gen, "Tutorial Home 1", StructureArrayTutorial.blockArrayTutorial1,
+        StructureGeneratorBase.WEST, StructureRotation.getFacingToward(player), x, y + 1, z);
+/*
+If you still generate some structures with generateCompact or generateFromFile, add them to the
+index yourself right after, using the same name, facing, rotations and position.
+*/
+/**
+ * Step 3: Using the index
+ */
+/*
+Here's a simple example: players can't break blocks inside of any "Tutorial Home". Whenever a
+player starts hitting a block, we check the index; it only looks at the structures in that one
+chunk, so it's perfectly fine to do this every time.
+*/
+@ForgeSubscribe
+public void onPlayerInteract(PlayerInteractEvent event)
+{
+    if (event.action == PlayerInteractEvent.Action.LEFT_CLICK_BLOCK && !event.entityPlayer.capabilities.isCreativeMode) {
+        StructureIndex.Entry entry = StructureIndex.get(event.entityPlayer.worldObj).getStructureAt(event.x, event.y, event.z);
+        if (entry != null && entry.name.startsWith("Tutorial Home")) {
+            event.setCanceled(true);
+        }
+    }
+}
+/*
+Or, for a quest that triggers when the player gets close to any of your dungeons, check a box
+around the player every now and then:
+*/
+List<StructureIndex.Entry> nearby = StructureIndex.get(world).getStructuresIn(
+        (int) player.posX - 16, (int) player.posY - 16, (int) player.posZ - 16,
+        (int) player.posX + 16, (int) player.posY + 16, (int) player.posZ + 16);
+/**
+ * Step 4: Undoing a structure
+ */
+/*
+Testing structures with the hammer leaves a mess of half-finished houses all over your test
+world, and on a live server, a structure placed in the wrong spot is a real pain to clean up
+by hand. So let's make it possible to undo a structure.
+
+To undo, we need to know what was there BEFORE: the block id, metadata and, for blocks like
+chests and signs, the TileEntity data. StructurePlacer is the one setting the blocks, so it can
+record all of that right before it sets each block. We call that record a 'journal'.
+
+A structure can easily overwrite tens of thousands of blocks, so we keep journals compact:
+
+- Positions are stored as a single int each, relative to where the structure was placed.
+  They're in the same order as the plan, which is already sorted by chunk, so an undo also
+  goes through the world one chunk at a time.
+- The old blocks go in a palette, just like our structure files in Part 4. Most of what a
+  structure overwrites is air, dirt, stone and grass, so the palette stays tiny.
+- Runs of the same old block are stored as {palette index, length} pairs. A house placed on
+  flat ground is mostly a handful of runs: a long run of grass, then a very long run of air.
+- TileEntity data is only stored for the few positions that actually had a TileEntity.
+
+Journals are saved with the world, in their own WorldSavedData for each dimension. Because you
+don't want them growing forever, there's a limit on the number of journals and on their total
+size; when either is exceeded, the journal that was used least recently is thrown away.
+*/
+public class StructureJournal
+{
+    public final int id;
+    public final String name;
+    public final int originX, originY, originZ;
+
+    /** Old block positions relative to the origin, packed as in getPosition() */
+    private final int[] positions;
+
+    /** Distinct old blocks, each stored as (blockID << 4 | metadata) */
+    private final int[] palette;
+
+    /** Runs of old blocks: {palette index, length, palette index, length, ...} */
+    private final int[] runs;
+
+    /** Old TileEntity data, keyed by position index */
+    private final Map<Integer, NBTTagCompound> tiles;
+
+    private StructureJournal(int id, String name, int originX, int originY, int originZ, int[] positions, int[] palette, int[] runs, Map<Integer, NBTTagCompound> tiles)
+    {
+        this.id = id;
+        this.name = name;
+        this.originX = originX;
+        this.originY = originY;
+        this.originZ = originZ;
+        this.positions = positions;
+        this.palette = palette;
+        this.runs = runs;
+        this.tiles = tiles;
+    }
+
+    /**
+     * Returns roughly how many bytes this journal takes up
+     */
+    public int getSize()
+    {
+        // Tile data varies a lot; 256 bytes each is a fair guess for chests and signs
+        return 64 + 4 * (positions.length + palette.length + runs.length) + 256 * tiles.size();
+    }
+
+    /**
+     * Puts back everything the structure overwrote
+     */
+    public void undo(World world)
+    {
+        int i = 0;
+        for (int r = 0; r < runs.length; r += 2) {
+            int state = palette[runs[r]];
+            for (int end = i + runs[r + 1]; i < end; ++i) {
+                int x = originX + getX(positions[i]), y = originY + getY(positions[i]), z = originZ + getZ(positions[i]);
+                clearInventory(world, x, y, z);
+                world.setBlock(x, y, z, state >> 4, state & 0xF, 2);
+                NBTTagCompound tag = tiles.get(i);
+                if (tag != null) {
+                    TileEntity te = world.getBlockTileEntity(x, y, z);
+                    if (te != null) {
+                        te.readFromNBT(tag);
+                        te.onInventoryChanged();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Empties any inventory at x/y/z, so replacing the block doesn't spill its contents;
+     * the journal (or the structure) already has a copy of everything in it
+     */
+    private static void clearInventory(World world, int x, int y, int z)
+    {
+        TileEntity te = world.getBlockTileEntity(x, y, z);
+        if (te instanceof IInventory) {
+            IInventory inventory = (IInventory) te;
+            for (int slot = 0; slot < inventory.getSizeInventory(); ++slot) {
+                inventory.setInventorySlotContents(slot, null);
+            }
+        }
+    }
+
+    /** Packs a position relative to the origin: 12 bits each for x and z, 8 bits for y */
+    private static int getPosition(int dx, int dy, int dz)
+    {
+        return ((dx + 2048) & 0xFFF) << 20 | ((dz + 2048) & 0xFFF) << 8 | (dy & 0xFF);
+    }
+
+    private static int getX(int position) { return (position >>> 20) - 2048; }
+    private static int getZ(int position) { return ((position >>> 8) & 0xFFF) - 2048; }
+    private static int getY(int position) { return position & 0xFF; }
+
+    public NBTTagCompound writeToNBT()
+    {
+        NBTTagCompound compound = new NBTTagCompound();
+        compound.setInteger("Id", id);
+        compound.setString("Name", name);
+        compound.setIntArray("Origin", new int[] {originX, originY, originZ});
+        compound.setIntArray("Positions", positions);
+        compound.setIntArray("Palette", palette);
+        compound.setIntArray("Runs", runs);
+        NBTTagList list = new NBTTagList();
+        for (Map.Entry<Integer, NBTTagCompound> entry : tiles.entrySet()) {
+            NBTTagCompound tag = (NBTTagCompound) entry.getValue().copy();
+            tag.setInteger("JournalIndex", entry.getKey());
+            list.appendTag(tag);
+        }
+        compound.setTag("Tiles", list);
+        return compound;
+    }
+
+    public static StructureJournal readFromNBT(NBTTagCompound compound)
+    {
+        int[] origin = compound.getIntArray("Origin");
+        Map<Integer, NBTTagCompound> tiles = new HashMap<Integer, NBTTagCompound>();
+        NBTTagList list = compound.getTagList("Tiles");
+        for (int i = 0; i < list.tagCount(); ++i) {
+            NBTTagCompound tag = (NBTTagCompound) list.tagAt(i);
+            tiles.put(tag.getInteger("JournalIndex"), tag);
+        }
+        return new StructureJournal(compound.getInteger("Id"), compound.getString("Name"), origin[0], origin[1], origin[2],
+                compound.getIntArray("Positions"), compound.getIntArray("Palette"), compound.getIntArray("Runs"), tiles);
+    }
+
+    /**
+     * Records blocks one at a time as they are about to be overwritten; see StructurePlacer
+     */
+    public static final class Recorder
+    {
+        private final String name;
+        private final int originX, originY, originZ;
+        private int[] positions = new int[256];
+        private int size;
+        private final List<Integer> palette = new ArrayList<Integer>();
+        private final Map<Integer, Integer> paletteIndex = new HashMap<Integer, Integer>();
+        private int[] runs = new int[16];
+        private int numRuns;
+        private final Map<Integer, NBTTagCompound> tiles = new HashMap<Integer, NBTTagCompound>();
+
+        public Recorder(String name, int originX, int originY, int originZ) {
+            this.name = name;
+            this.originX = originX;
+            this.originY = originY;
+            this.originZ = originZ;
+        }
+
+        /**
+         * Records whatever is at x/y/z right now; call this right before setting the block
+         */
+        public void record(World world, int x, int y, int z) {
+            if (size == positions.length) {
+                positions = Arrays.copyOf(positions, size * 2);
+            }
+            positions[size] = getPosition(x - originX, y - originY, z - originZ);
+
+            int state = world.getBlockId(x, y, z) << 4 | world.getBlockMetadata(x, y, z);
+            Integer index = paletteIndex.get(state);
+            if (index == null) {
+                index = palette.size();
+                palette.add(state);
+                paletteIndex.put(state, index);
+            }
+            // Extend the current run, or start a new one
+            if (numRuns > 0 && runs[numRuns - 2] == index) {
+                ++runs[numRuns - 1];
+            } else {
+                if (numRuns == runs.length) {
+                    runs = Arrays.copyOf(runs, numRuns * 2);
+                }
+                runs[numRuns++] = index;
+                runs[numRuns++] = 1;
+            }
+
+            TileEntity te = world.getBlockTileEntity(x, y, z);
+            if (te != null) {
+                NBTTagCompound tag = new NBTTagCompound();
+                te.writeToNBT(tag);
+                tiles.put(size, tag);
+                // The journal has the contents now, so don't let them spill when the block is replaced
+                clearInventory(world, x, y, z);
+            }
+            ++size;
+        }
+
+        public StructureJournal build(int id) {
+            int[] states = new int[palette.size()];
+            for (int i = 0; i < states.length; ++i) {
+                states[i] = palette.get(i);
+            }
+            return new StructureJournal(id, name, originX, originY, originZ, Arrays.copyOf(positions, size), states, Arrays.copyOf(runs, numRuns), tiles);
+        }
+    }
+}
+/*
+Why not just save a copy of the whole area? Because a 32x32x32 building would mean 32768 entries
+no matter what, while our journal is usually just a few runs plus the positions. The positions are
+the biggest part, but we need them, since plans skip empty {} cells and so aren't always boxes.
+*/
+/**
+ * Step 5: Keeping journals with the world
+ */
+/*
+Now a WorldSavedData to hold the journals, just like the StructureIndex. A LinkedHashMap in
+'access order' keeps the journals sorted from least to most recently used for us, so the one to
+throw away is always the first one.
+*/
+public class StructureJournalData extends WorldSavedData
+{
+    public static final String DATA_NAME = "YourModStructureJournals";
+
+    /** Maximum number of journals to keep per dimension */
+    public static int maxJournals = 32;
+
+    /** Maximum total size of all journals per dimension, in bytes; this is what is saved to disk, too */
+    public static int maxBytes = 8 * 1024 * 1024;
+
+    /** Journals by id; 'true' means iteration goes from least to most recently used */
+    private final LinkedHashMap<Integer, StructureJournal> journals = new LinkedHashMap<Integer, StructureJournal>(16, 0.75F, true);
+
+    private int nextId = 1;
+    private int totalBytes;
+
+    public StructureJournalData(String name)
+    {
+        super(name);
+    }
+
+    public static StructureJournalData get(World world)
+    {
+        StructureJournalData data = (StructureJournalData) world.perWorldStorage.loadData(StructureJournalData.class, DATA_NAME);
+        if (data == null) {
+            data = new StructureJournalData(DATA_NAME);
+            world.perWorldStorage.setData(DATA_NAME, data);
+        }
+        return data;
+    }
+
+    /**
+     * Turns the recorder into a journal and keeps it, throwing away the least recently used
+     * journals if we're over budget; returns the new journal's id
+     */
+    public int add(StructureJournal.Recorder recorder)
+    {
+        StructureJournal journal = recorder.build(nextId++);
+        journals.put(journal.id, journal);
+        totalBytes += journal.getSize();
+        Iterator<StructureJournal> iterator = journals.values().iterator();
+        while ((journals.size() > maxJournals || totalBytes > maxBytes) && iterator.hasNext()) {
+            StructureJournal eldest = iterator.next();
+            // Never throw away the journal we just added, even if it's over budget by itself
+            if (eldest == journal) {
+                break;
+            }
+            totalBytes -= eldest.getSize();
+            iterator.remove();
+        }
+        markDirty();
+        return journal.id;
+    }
+
+    /**
+     * Undoes and forgets the journal with the given id, or the most recent one if id is 0;
+     * returns the journal that was undone, or null if there wasn't one
+     */
+    public StructureJournal undo(World world, int id)
+    {
+        if (id == 0) {
+            for (int key : journals.keySet()) {
+                id = Math.max(id, key);
+            }
+        }
+        StructureJournal journal = journals.remove(id);
+        if (journal != null) {
+            journal.undo(world);
+            totalBytes -= journal.getSize();
+            StructureIndex.get(world).remove(journal.name, journal.originX, journal.originY, journal.originZ);
+            markDirty();
+        }
+        return journal;
+    }
+
+    @Override
+    public void readFromNBT(NBTTagCompound compound)
+    {
+        journals.clear();
+        totalBytes = 0;
+        // Id 0 means "the most recent structure", so never hand it out, even if the tag is missing
+        nextId = Math.max(1, compound.getInteger("NextId"));
+        NBTTagList list = compound.getTagList("Journals");
+        for (int i = 0; i < list.tagCount(); ++i) {
+            StructureJournal journal = StructureJournal.readFromNBT((NBTTagCompound) list.tagAt(i));
+            journals.put(journal.id, journal);
+            totalBytes += journal.getSize();
+            nextId = Math.max(nextId, journal.id + 1);
+        }
+    }
+
+    @Override
+    public void writeToNBT(NBTTagCompound compound)
+    {
+        compound.setInteger("NextId", nextId);
+        NBTTagList list = new NBTTagList();
+        for (StructureJournal journal : journals.values()) {
+            list.appendTag(journal.writeToNBT());
+        }
+        compound.setTag("Journals", list);
+    }
+}
+/*
+Undoing a structure should also take it out of the StructureIndex, so add a remove method there.
+The structure was placed at its origin, which is always one corner of its box at the bottom:
+*/
+/**
+ * Removes the structure with the given name that was placed at x/y/z
+ */
+public void remove(String name, int x, int y, int z)
+{
+    for (Iterator<Entry> iterator = entries.iterator(); iterator.hasNext();) {
+        Entry entry = iterator.next();
+        if (entry.name.equals(name) && entry.minY == y && (entry.minX == x || entry.maxX == x) && (entry.minZ == z || entry.maxZ == z)) {
+            iterator.remove();
+            for (List<Entry> list : chunks.values()) {
+                list.remove(entry);
+            }
+            markDirty();
+            return;
+        }
+    }
+}
+/*
+And in StructurePlacer, each Placement gets a StructureJournal.Recorder (create it in submit,
+using the name and position), records each block right before setting it, and hands the
+recorder to the journal data when it's done:
+*/
+// in tick(), the block loop becomes this; it still sets blocks through the metrics sample from
+// Part 5, Step 7, so you keep both the undo journal and the measurements:
+for (int i = placement.next; i < end; ++i) {
+    placement.recorder.record(placement.world, plan.getX(i), plan.getY(i), plan.getZ(i));
+    placement.sample.setBlock(placement.world, plan.getX(i), plan.getY(i), plan.getZ(i), plan.getBlockID(i), plan.getMetadata(i));
+}
+
+// ...and once the structure is finished, next to where we add it to the StructureIndex:
+int journalId = StructureJournalData.get(placement.world).add(placement.recorder);
+System.out.println("[STRUCTURE] Placed " + placement.name + "; use '/undostructure " + journalId + "' to undo it");
+/**
+ * Step 6: The undo command
+ */
+/*
+Last of all, a command so you (or your server's admins) can actually undo things. With no
+arguments it undoes the most recent structure in your dimension; otherwise, give it the id
+that was printed when the structure was placed.
+*/
+public class CommandUndoStructure extends CommandBase
+{
+    @Override
+    public String getCommandName() {
+        return "undostructure";
+    }
+
+    @Override
+    public String getCommandUsage(ICommandSender sender) {
+        return "/undostructure [id]";
+    }
+
+    @Override
+    public void processCommand(ICommandSender sender, String[] args) {
+        World world = sender.getEntityWorld();
+        int id = (args.length > 0 ? parseIntWithMin(sender, args[0], 1) : 0);
+        StructureJournal journal = StructureJournalData.get(world).undo(world, id);
+        if (journal == null) {
+            throw new CommandException("No structure to undo");
+        }
+        sender.sendChatToPlayer(ChatMessageComponent.createFromText("Undid " + journal.name + " (" + journal.id + ")"));
+    }
+}
+/*
+Register it when the server starts, in your main mod class:
+*/
+@EventHandler
+public void serverStarting(FMLServerStartingEvent event)
+{
+    event.registerServerCommand(new CommandUndoStructure());
+}
+/*
+Note that undo only puts back BLOCKS. Any entities the structure spawned, like villagers or
+paintings, are still there, so you'll have to take care of those yourself.
+*/
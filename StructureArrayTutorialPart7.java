@@ -0,0 +1,314 @@
+/*
+STRUCTURE GENERATOR TOOL TUTORIAL PART 7: PREVIEWING STRUCTURES
+
+When you select a structure with the hammer's '[' key and right click, you find out what it
+looks like and where it ended up only after it's already in the world. For a big building,
+that usually means a trip to /undostructure (Part 6) and another try.
+
+In this part we'll draw a see-through 'ghost' of the selected structure wherever the hammer is
+pointing, facing the way it will face when generated, so you can line it up before placing it.
+
+Drawing a structure one block at a time every frame would bring your frame rate to its knees
+for anything bigger than a house. Instead, we'll do all of the work ONCE: walk the block array,
+work out every face that can be seen, and store the result in an OpenGL 'display list'. A
+display list is a recorded batch of drawing commands that lives on the graphics card, so each
+frame we just move it to the right spot and replay it with a single glCallList.
+
+This is all client side only. It uses StructureRotation from Part 4.
+*/
+/**
+ * Step 1: Telling the preview what is selected
+ */
+/*
+The preview needs to know which structure the hammer has selected. Find the spot where your
+hammer's key handler changes the selected structure (when '[' or ']' is pressed) and add:
+*/
+StructurePreview.select(structure);
+/*
+Pass null when nothing is selected, or when you want to turn the preview off.
+*/
+/**
+ * Step 2: Baking the preview
+ */
+/*
+Which way the structure faces depends on which way the player is looking, so there are four
+possible previews for each structure. We bake each one the first time it's needed and keep it,
+so turning back and forth doesn't cost anything; selecting a different structure throws them
+all away.
+
+Baking works in two passes. The first pass works out where every block ends up after rotating
+and marks it in a grid. The second pass looks at each block's six neighbors in that grid and
+only adds faces that are next to something empty. A solid 40x40x40 cube is 64,000 blocks, but
+only 9,600 faces can be seen, so that's all we draw.
+
+We can't draw real textures this cheaply, so each block is tinted with its material's map color
+(the same colors vanilla maps use), which is more than enough to tell stone walls from wooden
+floors.
+*/
+@SideOnly(Side.CLIENT)
+public class StructurePreview
+{
+    /** Set to true to print how long baking and drawing the preview takes */
+    public static boolean debug = false;
+
+    /** How opaque the preview is, from 0 (invisible) to 255 (solid) */
+    public static int alpha = 96;
+
+    /** The structure currently selected with the hammer */
+    private static Structure selected;
+
+    /** One display list per facing for the selected structure, or 0 if not baked yet */
+    private static final int[] displayLists = new int[4];
+
+    /** The structure the display lists were baked for */
+    private static Structure baked;
+
+    private long frameNanos;
+    private int frames;
+
+    /**
+     * Sets the structure to preview; null turns the preview off
+     */
+    public static void select(Structure structure) {
+        selected = structure;
+    }
+
+    @ForgeSubscribe
+    public void onRenderWorldLast(RenderWorldLastEvent event) {
+        if (baked != selected) {
+            release();
+            baked = selected;
+        }
+        Minecraft mc = Minecraft.getMinecraft();
+        ItemStack held = mc.thePlayer.getHeldItem();
+        MovingObjectPosition target = mc.objectMouseOver;
+        if (selected == null || held == null || !(held.getItem() instanceof ItemStructureSpawner)
+                || target == null || target.typeOfHit != EnumMovingObjectType.TILE) {
+            return;
+        }
+        int rotations = StructureRotation.getRotations(selected.getFacing(), StructureRotation.getFacingToward(mc.thePlayer));
+        if (displayLists[rotations] == 0) {
+            long start = System.nanoTime();
+            displayLists[rotations] = bake(selected, rotations);
+            if (debug) {
+                System.out.println("[STRUCTURE] Baked preview of " + selected.name + " in " + (System.nanoTime() - start) / 1000000 + " ms");
+            }
+        }
+        long start = System.nanoTime();
+        draw(displayLists[rotations], target.blockX, target.blockY + 1, target.blockZ);
+        if (debug) {
+            frameNanos += System.nanoTime() - start;
+            if (++frames == 600) {
+                System.out.println("[STRUCTURE] Preview draw: " + (frameNanos / frames / 1000) + " microseconds per frame");
+                frameNanos = 0;
+                frames = 0;
+            }
+        }
+    }
+
+    /**
+     * Deletes all of the display lists for the previous selection
+     */
+    private static void release() {
+        for (int i = 0; i < displayLists.length; ++i) {
+            if (displayLists[i] != 0) {
+                GL11.glDeleteLists(displayLists[i], 1);
+                displayLists[i] = 0;
+            }
+        }
+    }
+
+    /**
+     * Moves the baked preview so its origin is at x/y/z and draws it see-through
+     */
+    private static void draw(int list, int x, int y, int z) {
+        GL11.glPushMatrix();
+        // Everything in the world is drawn relative to the camera
+        GL11.glTranslated(x - RenderManager.renderPosX, y - RenderManager.renderPosY, z - RenderManager.renderPosZ);
+        GL11.glDisable(GL11.GL_TEXTURE_2D);
+        GL11.glDisable(GL11.GL_LIGHTING);
+        GL11.glEnable(GL11.GL_BLEND);
+        GL11.glBlendFunc(GL11.GL_SRC_ALPHA, GL11.GL_ONE_MINUS_SRC_ALPHA);
+        // Don't write to the depth buffer, or the preview would hide the blocks behind it
+        GL11.glDepthMask(false);
+        GL11.glCallList(list);
+        GL11.glDepthMask(true);
+        GL11.glDisable(GL11.GL_BLEND);
+        GL11.glEnable(GL11.GL_LIGHTING);
+        GL11.glEnable(GL11.GL_TEXTURE_2D);
+        GL11.glPopMatrix();
+    }
+
+    /**
+     * Records every visible face of the rotated structure into a new display list
+     */
+    private static int bake(Structure structure, int rotations) {
+        // First pass: where does each block end up, and what color is it?
+        int count = 0, minX = 0, minZ = 0, maxX = 0, maxZ = 0, height = 0;
+        for (int[][][][] blocks : structure.blockArrayList) {
+            for (int[][][] layer : blocks) {
+                for (int x = 0; x < layer.length; ++x) {
+                    for (int z = 0; z < layer[x].length; ++z) {
+                        if (getColor(layer[x][z]) < 0) {
+                            continue;
+                        }
+                        int rx = StructureRotation.getRotatedX(x, z, rotations);
+                        int rz = StructureRotation.getRotatedZ(x, z, rotations);
+                        minX = Math.min(minX, rx);
+                        maxX = Math.max(maxX, rx);
+                        minZ = Math.min(minZ, rz);
+                        maxZ = Math.max(maxZ, rz);
+                        ++count;
+                    }
+                }
+                ++height;
+            }
+        }
+        int sizeX = maxX - minX + 1, sizeZ = maxZ - minZ + 1;
+        // Each entry is the block's color, or -1 for nothing there
+        int[] grid = new int[sizeX * height * sizeZ];
+        Arrays.fill(grid, -1);
+        int y = 0;
+        for (int[][][][] blocks : structure.blockArrayList) {
+            for (int[][][] layer : blocks) {
+                for (int x = 0; x < layer.length; ++x) {
+                    for (int z = 0; z < layer[x].length; ++z) {
+                        int color = getColor(layer[x][z]);
+                        if (color >= 0) {
+                            int rx = StructureRotation.getRotatedX(x, z, rotations) - minX;
+                            int rz = StructureRotation.getRotatedZ(x, z, rotations) - minZ;
+                            grid[(y * sizeX + rx) * sizeZ + rz] = color;
+                        }
+                    }
+                }
+                ++y;
+            }
+        }
+
+        // Second pass: add the faces that aren't hidden by another block of the structure
+        int list = GLAllocation.generateDisplayLists(1);
+        GL11.glNewList(list, GL11.GL_COMPILE);
+        Tessellator tessellator = Tessellator.instance;
+        tessellator.startDrawingQuads();
+        int faces = 0;
+        for (y = 0; y < height; ++y) {
+            for (int x = 0; x < sizeX; ++x) {
+                for (int z = 0; z < sizeZ; ++z) {
+                    int color = grid[(y * sizeX + x) * sizeZ + z];
+                    if (color < 0) {
+                        continue;
+                    }
+                    tessellator.setColorRGBA_I(color, alpha);
+                    for (int side = 0; side < 6; ++side) {
+                        int nx = x + Facing.offsetsXForSide[side];
+                        int ny = y + Facing.offsetsYForSide[side];
+                        int nz = z + Facing.offsetsZForSide[side];
+                        if (nx >= 0 && nx < sizeX && ny >= 0 && ny < height && nz >= 0 && nz < sizeZ
+                                && grid[(ny * sizeX + nx) * sizeZ + nz] >= 0) {
+                            continue;
+                        }
+                        addFace(tessellator, side, x + minX, y, z + minZ);
+                        ++faces;
+                    }
+                }
+            }
+        }
+        tessellator.draw();
+        GL11.glEndList();
+        if (debug) {
+            System.out.println("[STRUCTURE] Preview of " + structure.name + ": " + count + " blocks, " + faces + " faces");
+        }
+        return list;
+    }
+
+    /**
+     * Returns the preview color for the cell, or -1 if nothing should be drawn there
+     */
+    private static int getColor(int[] cell) {
+        if (cell.length == 0 || cell[0] == 0) {
+            return -1;
+        }
+        int blockID = cell[0];
+        if (blockID >= 4096) {
+            blockID = YourMod.gen.getRealBlockID(blockID, (cell.length > 2 ? cell[2] : 0));
+        }
+        Block block = (blockID > 0 && blockID < Block.blocksList.length ? Block.blocksList[blockID] : null);
+        if (block == null) {
+            return -1;
+        }
+        return block.blockMaterial.materialMapColor.colorValue;
+    }
+
+    /** Pulls each face in a tiny bit so it doesn't flicker against blocks already in the world */
+    private static final double INSET = 0.002D;
+
+    /**
+     * Adds one face of the block at x/y/z; side uses the usual values (0 is down, 1 up, 2 north...)
+     */
+    private static void addFace(Tessellator t, int side, int x, int y, int z) {
+        double x0 = x + INSET, y0 = y + INSET, z0 = z + INSET;
+        double x1 = x + 1 - INSET, y1 = y + 1 - INSET, z1 = z + 1 - INSET;
+        switch (side) {
+        case 0:
+            t.addVertex(x0, y0, z0); t.addVertex(x1, y0, z0); t.addVertex(x1, y0, z1); t.addVertex(x0, y0, z1);
+            break;
+        case 1:
+            t.addVertex(x0, y1, z0); t.addVertex(x0, y1, z1); t.addVertex(x1, y1, z1); t.addVertex(x1, y1, z0);
+            break;
+        case 2:
+            t.addVertex(x0, y0, z0); t.addVertex(x0, y1, z0); t.addVertex(x1, y1, z0); t.addVertex(x1, y0, z0);
+            break;
+        case 3:
+            t.addVertex(x0, y0, z1); t.addVertex(x1, y0, z1); t.addVertex(x1, y1, z1); t.addVertex(x0, y1, z1);
+            break;
+        case 4:
+            t.addVertex(x0, y0, z0); t.addVertex(x0, y0, z1); t.addVertex(x0, y1, z1); t.addVertex(x0, y1, z0);
+            break;
+        case 5:
+            t.addVertex(x1, y0, z0); t.addVertex(x1, y1, z0); t.addVertex(x1, y1, z1); t.addVertex(x1, y0, z1);
+            break;
+        }
+    }
+}
+/*
+A few things to note:
+
+1. We turned off depth writes but left depth testing on, so the preview is hidden behind hills
+   and walls just like real blocks would be, but doesn't hide anything itself. If you'd rather
+   see the whole thing through the ground, disable GL_DEPTH_TEST in draw() as well.
+
+2. The preview is drawn with its origin (the [0][0][0] corner of the array) one block above the
+   block you're looking at, which is where the hammer from Part 5 puts it with
+   StructurePlacer.submit(..., x, y + 1, z). If your hammer places structures somewhere else,
+   change the position passed to draw() to match.
+
+3. Custom hook blocks are drawn as whatever getRealBlockID says they are, so your custom chests
+   show up as chests.
+*/
+/**
+ * Step 3: Registering the preview
+ */
+/*
+RenderWorldLastEvent is posted on the MinecraftForge EVENT_BUS after the world has been drawn
+each frame. Since it's client only, register it in your ClientProxy:
+*/
+@Override
+public void registerRenderers()
+{
+    MinecraftForge.EVENT_BUS.register(new StructurePreview());
+}
+/*
+That's it! Grab the hammer, select a structure, and look around. As you turn, the preview
+turns with you, and the very first time it faces each direction it gets baked.
+
+How much does it cost? Set StructurePreview.debug to true and watch the console. Baking a
+50,000 block structure takes a few tens of milliseconds, once per facing. After that, each frame
+only costs the glCallList itself, which is a few microseconds of CPU time no matter how big the
+structure is. That number doesn't include the time the graphics card spends drawing, so also
+compare the frame rate in the F3 screen with the preview on and off; a few tens of thousands of
+untextured faces are nothing to any graphics card from the last decade.
+
+If you really need to see huge structures textured, you could bake with RenderBlocks instead
+of plain colored faces, but you'd have to give it a fake IBlockAccess that reads from your
+block array, and the display lists would be a great deal bigger.
+*/